@@ -103,11 +103,33 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
 
   config :include_codec_tag, :validate => :boolean, :default => true, :deprecated => "use `enrich` option to configure which enrichments to perform"
 
+  # Interval in seconds between two checks of the certificate, key and CA files, changed files are reloaded for new connections
+  config :ssl_certificate_reload_interval, :validate => :number
+
+  # Number of threads doing the CPU intensive work of the TLS handshakes, instead of the event loops reading the connections
+  config :ssl_handshake_threads, :validate => :number
+
   # Time in milliseconds for an incomplete ssl handshake to timeout
   config :ssl_handshake_timeout, :validate => :number, :default => 10000
 
-  config :ssl_cipher_suites, :validate => SslContextBuilder::SUPPORTED_CIPHERS.to_a,
-         :default => SslContextBuilder.getDefaultCiphers, :list => true
+  # Cipher suites in order of preference, checked against the JDK ones when the plugin is registered
+  config :ssl_cipher_suites, :validate => :string, :list => true,
+         :default => SslContextBuilder.getDefaultCipherCandidates.to_a
+
+  # Maximum number of TLS handshakes in progress, further connections wait to be accepted
+  config :ssl_max_concurrent_handshakes, :validate => :number
+
+  # TLS implementation, `openssl` uses the BoringSSL library shipped for the common platforms and falls back to the JDK otherwise
+  config :ssl_provider, :validate => %w[jdk openssl], :default => 'jdk'
+
+  # Number of TLS sessions kept to resume the handshakes of reconnecting clients, 0 for no limit
+  config :ssl_session_cache_size, :validate => :number
+
+  # Time in seconds during which a TLS session can be resumed, from the cache or from a session ticket
+  config :ssl_session_timeout, :validate => :number
+
+  # Interval in seconds between two rotations of the keys encrypting the session tickets, only with `ssl_provider => openssl`
+  config :ssl_session_ticket_key_rotation, :validate => :number
 
   config :ssl_supported_protocols, :validate => ['TLSv1.1', 'TLSv1.2', 'TLSv1.3'], :default => ['TLSv1.2', 'TLSv1.3'], :list => true
 
@@ -121,6 +143,29 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
   # defaults to zero where Netty's DEFAULT_EVENT_LOOP_THREADS (NettyRuntime.availableProcessors() * 2) will be applied
   config :event_loop_threads, :validate => :number, :default => 0
 
+  # Fields to keep when deserializing events, the other fields are skipped without being allocated.
+  # Fields are referenced with the field reference syntax, e.g. `[log][file][path]`.
+  config :include_fields, :validate => :string, :list => true, :default => []
+
+  # Fields to drop when deserializing events, e.g. `[agent][ephemeral_id]`, the subtrees are skipped without being allocated.
+  config :exclude_fields, :validate => :string, :list => true, :default => []
+
+  # Drop events before they are deserialized when a field holds one of the given values,
+  # e.g. `{ "[log][level]" => ["debug", "trace"] }`. Dropped events are still acknowledged to the beat.
+  config :drop_when, :validate => :hash, :default => {}
+
+  # Forward the Json sent by the beats without deserializing it: the event holds the payload as a string in
+  # `[event][original]`, plus the fields listed in `raw_payload_fields`. The codec is not applied.
+  config :raw_payload, :validate => :boolean, :default => false
+
+  # Fields copied to the events from the raw payloads, read without deserializing the rest of the Json,
+  # e.g. `[@metadata][beat]` or `[host][name]`. Only used with `raw_payload => true`.
+  config :raw_payload_fields, :validate => :string, :list => true, :default => []
+
+  # Existing directory where the decrypted bytes received on every connection are recorded, with their timing,
+  # to replay production traffic in benchmarks. Captures hold all the events, only enable it for a limited time.
+  config :capture_directory, :validate => :path
+
   # Flag to determine whether to add host information (provided by the beat in the 'hostname' field) to the event
   config :add_hostname, :validate => :boolean, :default => false, :deprecated => 'This option will be removed in the future as beats determine the event schema'
 
@@ -149,11 +194,19 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
   attr_reader :field_tls_protocol_version, :field_tls_peer_subject, :field_tls_cipher
   attr_reader :include_ssl_peer_metadata
   attr_reader :include_source_metadata
+  attr_reader :raw_payload_extractor
 
   SSL_CLIENT_AUTH_NONE = 'none'.freeze
   SSL_CLIENT_AUTH_OPTIONAL = 'optional'.freeze
   SSL_CLIENT_AUTH_REQUIRED = 'required'.freeze
 
+  # seconds between two reports of the Java side metrics
+  METRICS_REPORT_INTERVAL = 10
+  # connections whose counters are logged with each report, at debug level
+  BUSIEST_CONNECTIONS_LOGGED = 5
+  # percentage of the maximum direct memory used by the allocator above which a warning is logged with each report
+  DIRECT_MEMORY_WARNING_THRESHOLD = 80
+
   private_constant :SSL_CLIENT_AUTH_NONE
   private_constant :SSL_CLIENT_AUTH_OPTIONAL
   private_constant :SSL_CLIENT_AUTH_REQUIRED
@@ -199,6 +252,8 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
     @field_tls_peer_subject = ecs_select[disabled: "[@metadata][tls_peer][subject]", v1: "[@metadata][input][beats][tls][client][subject]"]
     @field_tls_cipher = ecs_select[disabled: "[@metadata][tls_peer][cipher_suite]", v1: "[@metadata][input][beats][tls][cipher]"]
 
+    @raw_payload_extractor = new_raw_payload_extractor if @raw_payload
+
     @logger.info("Starting input listener", :address => "#{@host}:#{@port}")
 
     @server = create_server
@@ -206,20 +261,65 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
 
   def create_server
     server = org.logstash.beats.Server.new(@id, @host, @port, @client_inactivity_timeout, @event_loop_threads, @executor_threads)
-    server.setSslHandlerProvider(new_ssl_handshake_provider(new_ssl_context_builder)) if @ssl_enabled
+    if @ssl_enabled
+      @ssl_handler_provider = new_ssl_handshake_provider(new_ssl_context_builder)
+      server.setSslHandlerProvider(@ssl_handler_provider)
+    end
+    server.setFieldProjection(new_field_projection) if @include_fields.any? || @exclude_fields.any?
+    if @drop_when.any?
+      @message_filter = new_message_filter
+      server.setMessageFilter(@message_filter)
+    end
+    server.setCaptureDirectory(@capture_directory) if @capture_directory
+    # the executor gauges time every event, they are not kept when the metrics of the plugin are disabled
+    server.setExecutorMetricsEnabled(@enable_metric)
     server
   end
 
   def run(output_queue)
     message_listener = MessageListener.new(output_queue, self)
     @server.setMessageListener(message_listener)
+    @metrics_reporter = Concurrent::TimerTask.new(:execution_interval => METRICS_REPORT_INTERVAL) { report_metrics }
+    @metrics_reporter.execute
     @server.listen
   end # def run
 
   def stop
+    @metrics_reporter.shutdown unless @metrics_reporter.nil?
     @server.stop unless @server.nil?
   end
 
+  # Reports the protocol counters of all the connections since the input started, and the ACK latency percentiles
+  # of the windows acknowledged since the previous report, in microseconds.
+  def report_metrics
+    server_metrics = @server.getMetrics
+    totals = server_metrics.getTotals
+    metric.gauge(:bytes_read, totals.getBytesRead)
+    metric.gauge(:compressed_bytes, totals.getCompressedBytes)
+    metric.gauge(:inflated_bytes, totals.getInflatedBytes)
+    metric.gauge(:windows, totals.getWindows)
+    metric.gauge(:events, totals.getEvents)
+    metric.gauge(:average_event_size, totals.getAverageEventSize)
+    metric.gauge(:partial_windows, totals.getPartialWindows)
+    metric.gauge(:keep_alive_acks, totals.getKeepAliveAcks)
+    metric.gauge(:dropped_events, @message_filter.getDroppedCount) if @message_filter
+    log_busiest_connections(server_metrics.getConnections) if @logger.debug?
+
+    ack_latency = server_metrics.getAckLatency.getIntervalHistogram
+    ack_latency_metric = metric.namespace(:ack_latency)
+    ack_latency_metric.gauge(:windows, ack_latency.getCount)
+    ack_latency_metric.gauge(:p50_micros, ack_latency.getPercentileMicros(50))
+    ack_latency_metric.gauge(:p99_micros, ack_latency.getPercentileMicros(99))
+    ack_latency_metric.gauge(:p999_micros, ack_latency.getPercentileMicros(99.9))
+    ack_latency_metric.gauge(:max_micros, ack_latency.getMaxMicros)
+
+    report_executor_metrics(server_metrics.getExecutors)
+    report_allocator_metrics(server_metrics.sampleAllocator)
+    report_tls_metrics(@ssl_handler_provider.getMetrics, @ssl_handler_provider.getHandshakesInProgress) if @ssl_handler_provider
+  rescue => e
+    @logger.debug("Failed to report metrics", error_details(e))
+  end
+
   def ssl_configured?
     !(@ssl_certificate.nil? || @ssl_key.nil?)
   end
@@ -265,8 +365,81 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
     return @include_source_metadata
   end
 
+  def raw_payload?
+    @raw_payload
+  end
+
   private
 
+  # Pending tasks and queue wait show a saturated executor, while a growing listener time shows the pipeline
+  # applying back-pressure.
+  def report_executor_metrics(executors)
+    executors.each do |executor|
+      task_wait = executor.getTaskWait.getIntervalHistogram
+      executor_metric = metric.namespace(:executors).namespace(executor.getName.to_sym)
+      executor_metric.gauge(:pending_tasks, executor.getPendingTasks)
+      executor_metric.gauge(:task_wait_p99_micros, task_wait.getPercentileMicros(99))
+      executor_metric.gauge(:task_wait_max_micros, task_wait.getMaxMicros)
+      executor_metric.gauge(:listener_time_millis, executor.getListenerNanos / 1_000_000)
+      executor_metric.gauge(:listener_calls, executor.getListenerCalls)
+    end
+  end
+
+  def report_allocator_metrics(allocator)
+    allocator_metric = metric.namespace(:allocator)
+    allocator_metric.gauge(:used_direct_memory, allocator.getUsedDirectMemory)
+    allocator_metric.gauge(:used_heap_memory, allocator.getUsedHeapMemory)
+    allocator_metric.gauge(:max_direct_memory, allocator.getMaxDirectMemory)
+    allocator_metric.gauge(:direct_arenas, allocator.getDirectArenas)
+    allocator_metric.gauge(:heap_arenas, allocator.getHeapArenas)
+    allocator_metric.gauge(:thread_local_caches, allocator.getThreadLocalCaches)
+    allocator_metric.gauge(:chunks, allocator.getChunks)
+    allocator_metric.gauge(:chunk_usage_percent, allocator.getChunkUsage)
+    allocator_metric.gauge(:allocations, allocator.getAllocations)
+    allocator_metric.gauge(:huge_allocations, allocator.getHugeAllocations)
+    allocator_metric.gauge(:active_huge_allocations, allocator.getActiveHugeAllocations)
+    allocator_metric.gauge(:active_bytes, allocator.getActiveBytes)
+
+    max_direct_memory = allocator.getMaxDirectMemory
+    if max_direct_memory > 0 && allocator.getUsedDirectMemory * 100 > max_direct_memory * DIRECT_MEMORY_WARNING_THRESHOLD
+      @logger.warn("Direct memory used by the beats input is close to the limit, consider reducing the window size of the clients or increasing -XX:MaxDirectMemorySize",
+                   :used_direct_memory => allocator.getUsedDirectMemory, :max_direct_memory => max_direct_memory)
+    end
+  end
+
+  def report_tls_metrics(tls, handshakes_in_progress)
+    tls_metric = metric.namespace(:tls)
+    tls_metric.gauge(:handshakes, tls.getHandshakes)
+    tls_metric.gauge(:resumed_handshakes, tls.getResumedHandshakes)
+    tls_metric.gauge(:failed_handshakes, tls.getFailedHandshakes)
+    tls_metric.gauge(:handshakes_in_progress, handshakes_in_progress)
+
+    handshake_duration = tls.getHandshakeDuration.getIntervalHistogram
+    duration_metric = tls_metric.namespace(:handshake_duration)
+    duration_metric.gauge(:handshakes, handshake_duration.getCount)
+    duration_metric.gauge(:p50_micros, handshake_duration.getPercentileMicros(50))
+    duration_metric.gauge(:p99_micros, handshake_duration.getPercentileMicros(99))
+    duration_metric.gauge(:max_micros, handshake_duration.getMaxMicros)
+
+    report_counts(tls_metric.namespace(:protocols), tls.getProtocols)
+    report_counts(tls_metric.namespace(:cipher_suites), tls.getCipherSuites)
+    report_counts(tls_metric.namespace(:failures), tls.getFailures)
+  end
+
+  def report_counts(counts_metric, counts)
+    counts.each { |name, count| counts_metric.gauge(name.to_sym, count) }
+  end
+
+  def log_busiest_connections(connections)
+    connections.sort_by { |connection| -connection.getMetrics.getBytesRead }.first(BUSIEST_CONNECTIONS_LOGGED).each do |connection|
+      connection_metrics = connection.getMetrics
+      @logger.debug("Connection metrics", :ip_address => connection.getIpAddress,
+                    :bytes_read => connection_metrics.getBytesRead, :windows => connection_metrics.getWindows,
+                    :events => connection_metrics.getEvents, :average_event_size => connection_metrics.getAverageEventSize,
+                    :partial_windows => connection_metrics.getPartialWindows, :keep_alive_acks => connection_metrics.getKeepAliveAcks)
+    end
+  end
+
   def validate_ssl_config!
     ssl_config_name = 'ssl_enabled'
 
@@ -299,7 +472,12 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
 
   def new_ssl_handshake_provider(ssl_context_builder)
     begin
-      org.logstash.netty.SslHandlerProvider.new(ssl_context_builder.build_context, @ssl_handshake_timeout)
+      ssl_handler_provider = org.logstash.netty.SslHandlerProvider.new(ssl_context_builder, @ssl_handshake_timeout)
+      ssl_handler_provider.setReloadCheckInterval(@ssl_certificate_reload_interval * 1000) unless @ssl_certificate_reload_interval.nil?
+      ssl_handler_provider.setHandshakeThreads(@ssl_handshake_threads) unless @ssl_handshake_threads.nil?
+      ssl_handler_provider.setMaxHandshakesInProgress(@ssl_max_concurrent_handshakes) unless @ssl_max_concurrent_handshakes.nil?
+      ssl_handler_provider.setSessionTicketKeyRotation(@ssl_session_ticket_key_rotation) unless @ssl_session_ticket_key_rotation.nil?
+      ssl_handler_provider
     rescue java.lang.IllegalArgumentException => e
       @logger.error("SSL configuration invalid", error_details(e))
       raise LogStash::ConfigurationError, e
@@ -309,12 +487,37 @@ class LogStash::Inputs::Beats < LogStash::Inputs::Base
     end
   end
 
+  def new_field_projection
+    org.logstash.beats.FieldProjection.new(@include_fields, @exclude_fields)
+  rescue java.lang.IllegalArgumentException => e
+    configuration_error "Invalid field projection: #{e.message}"
+  end
+
+  def new_raw_payload_extractor
+    org.logstash.beats.JsonFieldExtractor.new(@raw_payload_fields)
+  rescue java.lang.IllegalArgumentException => e
+    configuration_error "Invalid `raw_payload_fields` configuration: #{e.message}"
+  end
+
+  def new_message_filter
+    drop_when = @drop_when.each_with_object({}) { |(field, values), h| h[field] = Array(values).map(&:to_s) }
+    org.logstash.beats.MessageFilter.new(drop_when)
+  rescue java.lang.IllegalArgumentException => e
+    configuration_error "Invalid `drop_when` configuration: #{e.message}"
+  end
+
   def new_ssl_context_builder
     passphrase = @ssl_key_passphrase.nil? ? nil : @ssl_key_passphrase.value
     begin
       ssl_context_builder = org.logstash.netty.SslContextBuilder.new(@ssl_certificate, @ssl_key, passphrase)
           .setProtocols(@ssl_supported_protocols)
-          .setCipherSuites(normalized_cipher_suites)
+          .setSslProvider(io.netty.handler.ssl.SslProvider.valueOf(@ssl_provider.upcase))
+
+      # unless ciphers are configured, the builder picks the default ones supported by the provider, configured ones
+      # it does not support are rejected when they are set
+      ssl_context_builder.setCipherSuites(normalized_cipher_suites) if original_params.include?('ssl_cipher_suites')
+      ssl_context_builder.setSessionCacheSize(@ssl_session_cache_size) unless @ssl_session_cache_size.nil?
+      ssl_context_builder.setSessionTimeout(@ssl_session_timeout) unless @ssl_session_timeout.nil?
 
       if client_authentication_enabled?
         ssl_context_builder.setClientAuthentication(ssl_context_builder_verify_mode, @ssl_certificate_authorities)
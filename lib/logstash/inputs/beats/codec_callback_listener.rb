@@ -8,7 +8,7 @@ module LogStash module Inputs class Beats
     attr_accessor :data
     # The path acts as the `stream_identity`, 
     # useful when the clients is reading multiples files
-    attr_accessor :path
+    attr_writer :path
 
     def initialize(data, hash, path, transformer, queue)
       @data = data
@@ -18,6 +18,12 @@ module LogStash module Inputs class Beats
       @transformer = transformer
     end
 
+    # the path can be given as a lambda, only called once by the codecs that use it
+    def path
+      @path = @path.call if @path.respond_to?(:call)
+      @path
+    end
+
     def process_event(event)
       @transformer.transform(event, @hash)
       @queue << event
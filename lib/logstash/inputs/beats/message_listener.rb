@@ -1,7 +1,7 @@
 # encoding: utf-8
 require "thread_safe"
+require "jruby"
 require "logstash-input-beats_jars"
-java_import "javax.net.ssl.SSLPeerUnverifiedException"
 java_import "org.logstash.beats.MessageListener"
 
 module LogStash module Inputs class Beats
@@ -10,8 +10,9 @@ module LogStash module Inputs class Beats
 
     FILEBEAT_LOG_LINE_FIELD = "message".freeze
     LUMBERJACK_LINE_FIELD = "line".freeze
+    RAW_PAYLOAD_FIELD = "[event][original]".freeze
 
-    ConnectionState = Struct.new(:ctx, :codec, :ip_address)
+    ConnectionState = Struct.new(:ctx, :codec, :ip_address, :closed)
 
     attr_reader :logger, :input, :connections_list
 
@@ -28,32 +29,38 @@ module LogStash module Inputs class Beats
       @nocodec_transformer = RawEventTransform.new(@input)
       @codec_transformer = DecodedEventTransform.new(@input)
       @event_factory = input.event_factory
+      # the plain codec keeps no state between messages, a single instance decodes the lines of all the connections
+      @shared_codec = input.codec if stateless_codec?(input.codec)
     end
 
     def onNewMessage(ctx, message)
-      hash = message.getData
+      hash = @input.raw_payload? ? raw_payload_data(message) : message.getData
+      # messages received by the server carry the Java state of their connection
+      connection_state = message.getConnectionState
 
       if @input.include_source_metadata?
-        ip_address = ip_address(ctx)
+        ip_address = connection_state.nil? ? ip_address(ctx) : connection_state.getIpAddress
         unless ip_address.nil?
           set_nested(hash, @input.field_hostip, ip_address)
         end
       end
 
-      target_field = extract_target_field(hash)
+      # raw payloads are forwarded as received, the codec is not applied
+      target_field = extract_target_field(hash) unless @input.raw_payload?
 
-      extract_tls_peer(hash, ctx)
+      extract_tls_peer(hash, ctx, message)
 
       if target_field.nil?
         event = event_factory.new_event(hash)
         @nocodec_transformer.transform(event)
         @queue << event
       else
-        current_codec = codec(ctx)
+        current_codec = codec(ctx, connection_state)
         if current_codec
+          # the identity stream is only computed for the codecs reading the path of the listener
           current_codec.accept(CodecCallbackListener.new(target_field,
                                                          hash,
-                                                         message.getIdentityStream(),
+                                                         -> { message.getIdentityStream },
                                                          @codec_transformer,
                                                          @queue))
         else
@@ -92,9 +99,26 @@ module LogStash module Inputs class Beats
     end
 
     private
-    def codec(ctx)
-      return if connections_list[ctx].nil?
-      connections_list[ctx].codec
+    # the codec of a connection is cloned for its first line to decode, many beats only send structured events
+    def codec(ctx, connection_state = nil)
+      connection = connection(ctx, connection_state)
+      return if connection.nil? || connection.closed
+      connection.codec ||= @shared_codec || input.codec.clone
+    end
+
+    # the Ruby state is attached to the Java state of the connection on its first message, saving a lookup per event
+    def connection(ctx, connection_state)
+      return connections_list[ctx] if connection_state.nil?
+      connection = connection_state.getListenerState
+      if connection.nil?
+        connection = connections_list[ctx]
+        connection_state.setListenerState(connection) unless connection.nil?
+      end
+      connection
+    end
+
+    def stateless_codec?(codec)
+      codec.class.respond_to?(:config_name) && codec.class.config_name == "plain"
     end
 
     def ip_address(ctx)
@@ -103,7 +127,7 @@ module LogStash module Inputs class Beats
     end
 
     def register_connection(ctx)
-      connections_list[ctx] = ConnectionState.new(ctx, input.codec.clone, ip_address_from_ctx(ctx))
+      connections_list[ctx] = ConnectionState.new(ctx, nil, ip_address_from_ctx(ctx))
     end
 
     def ip_address_from_ctx(ctx)
@@ -124,50 +148,63 @@ module LogStash module Inputs class Beats
 
     def unregister_connection(ctx)
       flush_buffer(ctx)
-      connections_list.delete(ctx)
+      connection = connections_list.delete(ctx)
+      # messages still being processed reach the state through their connection, they must not clone a codec
+      connection.closed = true unless connection.nil?
     end
 
+    # only codecs cloned for the connection may buffer lines
     def flush_buffer(ctx)
-      return if codec(ctx).nil?
+      connection = connections_list[ctx]
+      return if connection.nil? || connection.codec.nil? || connection.codec.equal?(@shared_codec)
 
       transformer = EventTransformCommon.new(@input)
-      codec(ctx).flush do |event|
+      connection.codec.flush do |event|
         transformer.transform(event)
         @queue << event
       end
     end
 
-    def extract_tls_peer(hash, ctx)
+    def extract_tls_peer(hash, ctx, message)
       if @input.client_authentication_metadata?
-        tls_session = ctx.channel().pipeline().get("ssl-handler").engine().getSession()
-        tls_verified = true
-
-        unless @input.client_authentication_required?
-          # throws SSLPeerUnverifiedException if unverified
-          begin
-            tls_session.getPeerCertificates()
-          rescue SSLPeerUnverifiedException => e
-            tls_verified = false
-            if input.logger.debug?
-              input.logger.debug("SSL peer unverified. This is normal with 'peer' verification and client does not presents a certificate.", :exception => e)
-            end
-          end
-        end
-
+        tls_peer = tls_peer(ctx, message)
         meta_data = hash['@metadata'] ||= {}
 
-        if tls_verified
+        if tls_peer.isVerified
           meta_data['tls_peer'] = { :status => "verified" }
 
-          set_nested(hash, input.field_tls_protocol_version, tls_session.getProtocol())
-          set_nested(hash, input.field_tls_peer_subject, tls_session.getPeerPrincipal().getName())
-          set_nested(hash, input.field_tls_cipher, tls_session.getCipherSuite())
+          set_nested(hash, input.field_tls_protocol_version, tls_peer.getProtocol)
+          set_nested(hash, input.field_tls_peer_subject, tls_peer.getSubject)
+          set_nested(hash, input.field_tls_cipher, tls_peer.getCipherSuite)
         else
+          # normal with optional client authentication when the client does not present a certificate
           meta_data['tls_peer'] = { :status => "unverified" }
         end
       end
     end
 
+    # the Json is not deserialized, only the configured fields are read from it
+    def raw_payload_data(message)
+      hash = {}
+      message.extractFields(@input.raw_payload_extractor).each { |field, value| set_nested(hash, field, value) }
+      set_nested(hash, RAW_PAYLOAD_FIELD, raw_payload_string(message))
+      hash
+    end
+
+    # The string wraps the copy made by getRawBytes instead of copying it again, the copy itself is needed because
+    # the batch buffers are released once the window is acknowledged.
+    def raw_payload_string(message)
+      bytes = org.jruby.util.ByteList.new(message.getRawBytes, false)
+      org.jruby.RubyString.newString(JRuby.runtime, bytes).force_encoding(Encoding::UTF_8)
+    end
+
+    # the peer is read once per connection, messages built outside of a channel fall back to the pipeline
+    def tls_peer(ctx, message)
+      connection_state = message.getConnectionState
+      tls_peer = connection_state.getTlsPeer unless connection_state.nil?
+      tls_peer || org.logstash.beats.TlsPeer.of(ctx.channel().pipeline().get("ssl-handler").engine().getSession())
+    end
+
     # set the value for field_name into the hash, nesting into sub-hashes and creating hashes where necessary
     public #only to make it testable
     def set_nested(hash, field_name, value)
@@ -30,4 +30,16 @@ describe LogStash::Inputs::Beats::CodecCallbackListener do
   it "expose the path" do
     expect(subject.path).to eq(path)
   end
+
+  context "with a lazy path" do
+    let(:calls) { [] }
+    subject { described_class.new(data, map, -> { calls << :path; path }, transformer, queue) }
+
+    it "computes the path once, when it is read" do
+      expect(calls).to be_empty
+      expect(subject.path).to eq(path)
+      expect(subject.path).to eq(path)
+      expect(calls.size).to eq(1)
+    end
+  end
 end
@@ -3,8 +3,10 @@ require "logstash-core"
 require "logstash/inputs/beats"
 require "logstash/event"
 require "logstash/inputs/beats/message_listener"
+require "logstash/codecs/plain"
 require "logstash/instrument/namespaced_null_metric"
 require "thread"
+require "json"
 
 java_import java.util.HashMap
 
@@ -22,6 +24,18 @@ class MockMessage
   def getIdentityStream
     @identity_stream
   end
+
+  def getConnectionState
+    nil
+  end
+
+  def getRawBytes
+    @data.to_json.to_java_bytes
+  end
+
+  def extractFields(extractor)
+    extractor.extract(@data)
+  end
 end
 
 # General purpose single method mock class. Will keep generating mocks until requested method name (no args) is found.
@@ -236,6 +250,66 @@ describe LogStash::Inputs::Beats::MessageListener do
       end
     end
 
+    context "with raw_payload" do
+      let(:input) do
+        input = LogStash::Inputs::Beats.new({ "port" => 5555, "codec" => codec, "raw_payload" => true, "raw_payload_fields" => ["[beat][name]"] })
+        input.register
+        input
+      end
+      let(:message) { MockMessage.new("abc", { "message" => "hello world", "beat" => { "name" => "filebeat" } }) }
+
+      it "forwards the Json without applying the codec" do
+        subject.onNewMessage(ctx, message)
+        event = queue.pop
+        expect(JSON.parse(event.get("[event][original]"))).to eq(message.getData)
+        expect(event.get("[beat][name]")).to eq("filebeat")
+        expect(event.get("message")).to be_nil
+        expect(subject.connections_list[ctx].codec).to be_nil
+      end
+    end
+
+    context "codec of the connection" do
+      let(:structured_message) { MockMessage.new("abc", { "metric" => 1, "@metadata" => {} }) }
+
+      it "is not cloned for messages without a line" do
+        subject.onNewMessage(ctx, structured_message)
+        expect(subject.connections_list[ctx].codec).to be_nil
+      end
+
+      it "is cloned for the first line and reused" do
+        subject.onNewMessage(ctx, message)
+        connection_codec = subject.connections_list[ctx].codec
+        expect(connection_codec).not_to be_nil
+        expect(connection_codec).not_to equal(input.codec)
+
+        subject.onNewMessage(ctx, message)
+        expect(subject.connections_list[ctx].codec).to equal(connection_codec)
+      end
+
+      it "is not flushed when it was never cloned" do
+        subject.onNewMessage(ctx, structured_message)
+        queue.pop
+        subject.onConnectionClose(ctx)
+        expect(queue).to be_empty
+      end
+
+      context "with the plain codec" do
+        let(:codec) { LogStash::Codecs::Plain.new }
+        let(:second_ctx) { OngoingMethodMock.new("getHostAddress", "10.0.0.2") }
+
+        it "shares the codec of the input between connections" do
+          subject.onNewConnection(second_ctx)
+          subject.onNewMessage(ctx, message)
+          subject.onNewMessage(second_ctx, message)
+
+          expect(subject.connections_list[ctx].codec).to equal(input.codec)
+          expect(subject.connections_list[second_ctx].codec).to equal(input.codec)
+          expect(queue.pop.get("message")).to eq("hello world")
+          expect(queue.pop.get("message")).to eq("hello world")
+        end
+      end
+    end
+
     it_behaves_like "when the message is from any libbeat", :disabled, "[@metadata][ip_address]"
     it_behaves_like "when the message is from any libbeat", :v1, "[@metadata][input][beats][host][ip]"
     it_behaves_like "when the message is from any libbeat", :v8, "[@metadata][input][beats][host][ip]"
@@ -247,6 +321,8 @@ describe LogStash::Inputs::Beats::MessageListener do
     end
 
     it "calls flush on codec" do
+      subject.onNewMessage(ctx, message)
+      queue.pop
       subject.onConnectionClose(ctx)
       expect(queue).not_to be_empty
     end
@@ -258,6 +334,8 @@ describe LogStash::Inputs::Beats::MessageListener do
     end
 
     it "calls flush on codec" do
+      subject.onNewMessage(ctx, message)
+      queue.pop
       subject.onConnectionClose(ctx)
       expect(queue).not_to be_empty
     end
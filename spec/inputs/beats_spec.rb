@@ -85,8 +85,9 @@ describe LogStash::Inputs::Beats do
       context "with invalid ciphers" do
         let(:config) { super().merge("ssl_cipher_suites" => "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA38") }
 
-        it "should raise a configuration error" do
-          expect { LogStash::Inputs::Beats.new(config) }.to raise_error(LogStash::ConfigurationError, a_string_including("Something is wrong with your configuration."))
+        it "should fail to register the plugin" do
+          plugin = LogStash::Inputs::Beats.new(config)
+          expect { plugin.register }.to raise_error(LogStash::ConfigurationError, a_string_including("TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA38"))
         end
       end
 
@@ -0,0 +1,153 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding throughput of {@link BeatsParser} for v1 data frames, v2 Json frames and v2 compressed windows.
+ * <p>
+ * A window is encoded once with the test encoders, then fed to a parser through an {@link EmbeddedChannel}. v2
+ * windows are split in socket sized reads when {@code readSize} is set. The v1 decoder expects a data frame to be
+ * fully buffered, so v1 windows are always fed in a single read and have no {@code readSize} parameter. Scores are
+ * windows per second, multiply by {@code windowSize} to get events per second.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BeatsParserBenchmark {
+
+    @State(Scope.Thread)
+    public static class V1Window extends Window {
+        @Setup(Level.Trial)
+        public void setup() {
+            final V1Batch batch = new V1Batch();
+            batch.setBatchSize(windowSize);
+            for (int i = 1; i <= windowSize; i++) {
+                batch.addMessage(new Message(i, event()));
+            }
+            encode(batch, new BatchEncoder());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class V2Window extends Window {
+        @Param({"v2", "v2-compressed"})
+        public String frames;
+
+        // 0 feeds the whole window in a single read
+        @Param({"0", "16384"})
+        public int readSize;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final V2Batch batch = new V2Batch();
+            batch.setBatchSize(windowSize);
+            for (int i = 1; i <= windowSize; i++) {
+                try {
+                    final ByteBuf json = Unpooled.wrappedBuffer(Message.mapper().writeValueAsBytes(event()));
+                    batch.addMessage(i, json, json.readableBytes());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            encode(batch, "v2-compressed".equals(frames) ? new CompressedBatchEncoder() : new BatchEncoder());
+        }
+    }
+
+    @State(Scope.Thread)
+    public abstract static class Window {
+        @Param({"1", "100", "2048"})
+        public int windowSize;
+
+        @Param({"256", "4096"})
+        public int eventSize;
+
+        EmbeddedChannel channel;
+        ByteBuf window;
+
+        void encode(Batch batch, ChannelHandler encoderHandler) {
+            final EmbeddedChannel encoder = new EmbeddedChannel(encoderHandler);
+            encoder.writeOutbound(batch);
+            final CompositeByteBuf encoded = Unpooled.compositeBuffer();
+            ByteBuf chunk;
+            while ((chunk = encoder.readOutbound()) != null) {
+                encoded.addComponent(true, chunk);
+            }
+            window = Unpooled.copiedBuffer(encoded);
+            encoded.release();
+            batch.release();
+            encoder.finishAndReleaseAll();
+
+            channel = new EmbeddedChannel(new BeatsParser());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            channel.finishAndReleaseAll();
+            window.release();
+        }
+
+        Map<String, String> event() {
+            final Map<String, String> event = new HashMap<>();
+            event.put("host", "benchmark.local");
+            event.put("source", "/var/log/benchmark.log");
+            final StringBuilder line = new StringBuilder(eventSize);
+            while (line.length() < eventSize) {
+                line.append("the quick brown fox jumps over the lazy dog ");
+            }
+            event.put("message", line.substring(0, eventSize));
+            return event;
+        }
+    }
+
+    @Benchmark
+    public void decodeV1(V1Window state, Blackhole blackhole) {
+        state.channel.writeInbound(state.window.retainedDuplicate());
+        consume(state.channel, blackhole);
+    }
+
+    @Benchmark
+    public void decodeV2(V2Window state, Blackhole blackhole) {
+        final ByteBuf window = state.window;
+        if (state.readSize <= 0) {
+            state.channel.writeInbound(window.retainedDuplicate());
+        } else {
+            for (int offset = 0; offset < window.readableBytes(); offset += state.readSize) {
+                state.channel.writeInbound(window.retainedSlice(offset, Math.min(state.readSize, window.readableBytes() - offset)));
+            }
+        }
+        consume(state.channel, blackhole);
+    }
+
+    private static void consume(EmbeddedChannel channel, Blackhole blackhole) {
+        Batch batch;
+        while ((batch = channel.readInbound()) != null) {
+            blackhole.consume(batch.size());
+            batch.release();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Json materialization cost of {@link Message}, measured on event corpora of filebeat, metricbeat and winlogbeat
+ * checked in under {@code src/test/resources/corpus}, one Json event per line.
+ * <p>
+ * Every benchmark operation is one event. Run with the GC profiler to get the allocation per event, reported as
+ * {@code gc.alloc.rate.norm}: {@code gradle jmh -PjmhArgs=MessageBenchmark,-prof,gc}.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+    // must match the number of events of every corpus file
+    private static final int CORPUS_SIZE = 20;
+
+    @Param({"filebeat", "metricbeat", "winlogbeat"})
+    public String corpus;
+
+    private ByteBuf[] events;
+    private int next;
+    private EmbeddedChannel channel;
+    private ConnectionState connectionState;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        events = loadCorpus(corpus);
+        if (events.length != CORPUS_SIZE) {
+            throw new IllegalStateException("Corpus " + corpus + " holds " + events.length + " events, expected " + CORPUS_SIZE);
+        }
+        channel = new EmbeddedChannel();
+        connectionState = ConnectionState.of(channel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        for (ByteBuf event : events) {
+            event.release();
+        }
+    }
+
+    @Benchmark
+    public Map getData() {
+        return new Message(1, nextEvent()).getData();
+    }
+
+    @Benchmark
+    public String getIdentityStream() {
+        return new Message(1, nextEvent()).getIdentityStream();
+    }
+
+    @Benchmark
+    public String getIdentityStreamWithConnectionState() {
+        final Message message = new Message(1, nextEvent());
+        message.setConnectionState(connectionState);
+        return message.getIdentityStream();
+    }
+
+    /*
+     * Builds a window holding the whole corpus and deserializes every message, as the handler does for each batch.
+     * Copying the events into the batch buffer is part of the measurement.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_SIZE)
+    public void v2BatchIteration(Blackhole blackhole) {
+        final V2Batch batch = new V2Batch();
+        batch.setBatchSize(events.length);
+        for (int i = 0; i < events.length; i++) {
+            final ByteBuf event = events[i].duplicate();
+            batch.addMessage(i + 1, event, event.readableBytes());
+        }
+        try {
+            for (Message message : batch) {
+                blackhole.consume(message.getData());
+            }
+        } finally {
+            batch.release();
+        }
+    }
+
+    private ByteBuf nextEvent() {
+        final ByteBuf event = events[next];
+        next = (next + 1) % events.length;
+        return event.duplicate();
+    }
+
+    private static ByteBuf[] loadCorpus(String name) throws IOException {
+        final String resource = "/corpus/" + name + ".ndjson";
+        final List<ByteBuf> events = new ArrayList<>();
+        try (InputStream stream = MessageBenchmark.class.getResourceAsStream(resource)) {
+            if (stream == null) {
+                throw new IOException("Corpus " + resource + " not found on the classpath");
+            }
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    events.add(Unpooled.copiedBuffer(line, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return events.toArray(new ByteBuf[0]);
+    }
+}
@@ -0,0 +1,150 @@
+package org.logstash.beats;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from the construction of a {@link Server} to the acknowledgement of the first window it accepts, the window
+ * holding one Json event deserialized by the listener. The first iteration of every fork measures a cold start,
+ * including class loading and the Json mapper, the following ones the restart of an input in a warm JVM, as done by a
+ * pipeline reload. The client is written without the Json mapper so that it does not build it for the server.
+ * <pre>
+ * gradle jmh -PjmhArgs=StartupBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 10)
+@Fork(5)
+public class StartupBenchmark {
+
+    private static final byte[] EVENT = "{\"message\":\"startup\",\"@timestamp\":\"2024-01-01T00:00:00.000Z\"}".getBytes(StandardCharsets.UTF_8);
+
+    private NioEventLoopGroup clientGroup;
+    private Server server;
+    private Thread serverThread;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        clientGroup = new NioEventLoopGroup(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        clientGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.stop();
+            serverThread.join();
+            server = null;
+        }
+    }
+
+    @Benchmark
+    public void firstWindowAcknowledged() throws Exception {
+        final int port = freePort();
+        server = new Server("startup", "127.0.0.1", port, 60, 1, 1);
+        server.setMessageListener(new MessageListener() {
+            @Override
+            public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+                message.getData();
+            }
+        });
+        serverThread = new Thread(() -> {
+            try {
+                server.listen();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "startup-listen");
+        serverThread.start();
+
+        final CountDownLatch acknowledged = new CountDownLatch(1);
+        final Channel channel = connect(port, acknowledged);
+        try {
+            channel.writeAndFlush(window());
+            if (!acknowledged.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("The window was not acknowledged");
+            }
+        } finally {
+            channel.close().sync();
+        }
+    }
+
+    private Channel connect(int port, CountDownLatch acknowledged) throws InterruptedException {
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new LoadGenerator.AckDecoder(), new SimpleChannelInboundHandler<Integer>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, Integer sequence) {
+                                if (sequence == 1) {
+                                    acknowledged.countDown();
+                                }
+                            }
+                        });
+                    }
+                });
+        // retries until the server is bound, which is part of the measured time
+        while (true) {
+            try {
+                return bootstrap.connect("127.0.0.1", port).sync().channel();
+            } catch (Exception e) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        }
+    }
+
+    private static ByteBuf window() {
+        final ByteBuf window = Unpooled.buffer();
+        window.writeByte(Protocol.VERSION_2);
+        window.writeByte('W');
+        window.writeInt(1);
+        window.writeByte(Protocol.VERSION_2);
+        window.writeByte('J');
+        window.writeInt(1);
+        window.writeInt(EVENT.length);
+        window.writeBytes(EVENT);
+        return window;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
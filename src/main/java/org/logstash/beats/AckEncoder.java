@@ -1,14 +1,17 @@
 package org.logstash.beats;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 /**
  *  This Class is mostly used in the test suite to make the right assertions with the encoded data frame.
  *  This class support creating v1 or v2 lumberjack frames.
+ *  It is stateless, a single instance is shared by all the connections of a server.
  *
  */
+@ChannelHandler.Sharable
 public class AckEncoder extends MessageToByteEncoder<Ack> {
     @Override
     protected void encode(ChannelHandlerContext ctx, Ack ack, ByteBuf out) throws Exception {
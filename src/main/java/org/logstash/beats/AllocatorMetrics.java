@@ -0,0 +1,230 @@
+package org.logstash.beats;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Snapshot of the memory held by a {@link PooledByteBufAllocator}, which backs the windows of {@link V2Batch}.
+ * <p>
+ * Allocation counters only count the allocations served by the arenas: Netty does not count those served by the
+ * thread local caches, so a cache hit rate cannot be derived from them. Walking the chunks takes the arena locks,
+ * snapshots are meant to be taken every few seconds, not on the hot path.
+ * </p>
+ */
+public class AllocatorMetrics {
+
+    private static final String MAX_DIRECT_MEMORY_OPTION = "-XX:MaxDirectMemorySize=";
+    private static final long MAX_DIRECT_MEMORY = maxDirectMemory();
+
+    private final long usedDirectMemory;
+    private final long usedHeapMemory;
+    private final long bufferPoolDirectMemory;
+    private final int directArenas;
+    private final int heapArenas;
+    private final int threadLocalCaches;
+    private final int chunkSize;
+    private int chunks;
+    private long chunkFreeBytes;
+    private long allocations;
+    private long deallocations;
+    private long hugeAllocations;
+    private long activeHugeAllocations;
+    private long activeBytes;
+
+    private AllocatorMetrics(PooledByteBufAllocatorMetric metric) {
+        this.usedDirectMemory = metric.usedDirectMemory();
+        this.usedHeapMemory = metric.usedHeapMemory();
+        this.bufferPoolDirectMemory = bufferPoolDirectMemory();
+        this.directArenas = metric.numDirectArenas();
+        this.heapArenas = metric.numHeapArenas();
+        this.threadLocalCaches = metric.numThreadLocalCaches();
+        this.chunkSize = metric.chunkSize();
+        addArenas(metric.directArenas());
+        addArenas(metric.heapArenas());
+    }
+
+    /**
+     * @return a snapshot of the default pooled allocator
+     */
+    public static AllocatorMetrics sample() {
+        return sample(PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * @param allocator allocator to inspect
+     * @return a snapshot of the allocator
+     */
+    public static AllocatorMetrics sample(PooledByteBufAllocator allocator) {
+        return new AllocatorMetrics(allocator.metric());
+    }
+
+    /*
+     * The limit set with -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+     */
+    private static long maxDirectMemory() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith(MAX_DIRECT_MEMORY_OPTION)) {
+                try {
+                    final long size = parseSize(argument.substring(MAX_DIRECT_MEMORY_OPTION.length()));
+                    if (size > 0) {
+                        return size;
+                    }
+                } catch (NumberFormatException e) {
+                    // the JVM would not have started, fall back to the default
+                }
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    // parses the sizes of the JVM options, such as 512m or 2G
+    static long parseSize(String size) {
+        final String value = size.trim().toLowerCase(Locale.ROOT);
+        if (value.isEmpty()) {
+            throw new NumberFormatException("Empty size");
+        }
+        final int shift;
+        switch (value.charAt(value.length() - 1)) {
+            case 'k': shift = 10; break;
+            case 'm': shift = 20; break;
+            case 'g': shift = 30; break;
+            case 't': shift = 40; break;
+            default: return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) << shift;
+    }
+
+    private static long bufferPoolDirectMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    private void addArenas(List<PoolArenaMetric> arenas) {
+        for (PoolArenaMetric arena : arenas) {
+            allocations += arena.numAllocations();
+            deallocations += arena.numDeallocations();
+            hugeAllocations += arena.numHugeAllocations();
+            activeHugeAllocations += arena.numActiveHugeAllocations();
+            activeBytes += arena.numActiveBytes();
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : chunkList) {
+                    chunks++;
+                    chunkFreeBytes += chunk.freeBytes();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return direct memory reserved by the allocator, in bytes
+     */
+    public long getUsedDirectMemory() {
+        return usedDirectMemory;
+    }
+
+    /**
+     * @return heap memory reserved by the allocator, in bytes
+     */
+    public long getUsedHeapMemory() {
+        return usedHeapMemory;
+    }
+
+    /**
+     * @return maximum direct memory of the JVM, set with {@code -XX:MaxDirectMemorySize}, in bytes
+     */
+    public long getMaxDirectMemory() {
+        return MAX_DIRECT_MEMORY;
+    }
+
+    /**
+     * @return direct memory of the NIO buffers of the whole JVM, in bytes, -1 when the JVM does not tell. Netty buffers
+     * allocated without a cleaner are not part of it.
+     */
+    public long getBufferPoolDirectMemory() {
+        return bufferPoolDirectMemory;
+    }
+
+    public int getDirectArenas() {
+        return directArenas;
+    }
+
+    public int getHeapArenas() {
+        return heapArenas;
+    }
+
+    /**
+     * @return number of thread local caches in front of the arenas
+     */
+    public int getThreadLocalCaches() {
+        return threadLocalCaches;
+    }
+
+    /**
+     * @return size of a chunk, allocations bigger than a chunk are huge and not pooled
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return number of chunks allocated by the arenas
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return percentage of the bytes of the allocated chunks in use, 0 when there is no chunk
+     */
+    public int getChunkUsage() {
+        final long total = (long) chunks * chunkSize;
+        return total == 0 ? 0 : (int) (100 * (total - chunkFreeBytes) / total);
+    }
+
+    /**
+     * @return allocations served by the arenas since the allocator was created
+     */
+    public long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return deallocations returned to the arenas since the allocator was created
+     */
+    public long getDeallocations() {
+        return deallocations;
+    }
+
+    /**
+     * @return allocations bigger than a chunk since the allocator was created
+     */
+    public long getHugeAllocations() {
+        return hugeAllocations;
+    }
+
+    /**
+     * @return allocations bigger than a chunk not released yet
+     */
+    public long getActiveHugeAllocations() {
+        return activeHugeAllocations;
+    }
+
+    /**
+     * @return bytes of the allocations not released yet, served by the arenas
+     */
+    public long getActiveBytes() {
+        return activeBytes;
+    }
+}
@@ -45,6 +45,18 @@ public interface Batch extends Iterable<Message>{
      */
     boolean isComplete();
 
+    /**
+     * Returns when the first byte of the window was read from the connection.
+     * @return {@link System#nanoTime()} of the read, 0 if unknown
+     */
+    long getReceivedNanos();
+
+    /**
+     * Sets when the first byte of the window was read from the connection.
+     * @param receivedNanos {@link System#nanoTime()} of the read
+     */
+    void setReceivedNanos(long receivedNanos);
+
     /**
      * Release the resources associated with the batch. Consumers of the batch *must* release
      * after use.
@@ -4,30 +4,83 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.logstash.beats.jfr.FlightRecorderEvents;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.atomic.AtomicBoolean;
 import javax.net.ssl.SSLHandshakeException;
 
 public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
     private final static Logger logger = LogManager.getLogger(BeatsHandler.class);
     private final static String executorTerminatedMessage = "event executor terminated";
+    // batches waiting for the asynchronous listener before we stop reading from the socket, unless configured
+    final static int DEFAULT_MAX_PENDING_BATCHES = 2;
+    private final static CompletableFuture<Void> NO_PENDING_BATCH = CompletableFuture.completedFuture(null);
 
     private final IMessageListener messageListener;
+    private final IAsyncMessageListener asyncMessageListener;
+    private final FieldProjection fieldProjection;
+    private final MessageFilter messageFilter;
+    private final InputMetrics inputMetrics;
+    private final int maxPendingBatches;
     private ChannelHandlerContext context;
+    private ConnectionState connectionState;
+    private ExecutorMetrics executorMetrics;
 
-    private final AtomicBoolean isQuietPeriod = new AtomicBoolean(false);
+    private volatile boolean isQuietPeriod = false;
+
+    // only accessed from the channel executor
+    private int pendingBatches = 0;
+    private CompletableFuture<Void> lastBatchAcked = NO_PENDING_BATCH;
 
     public BeatsHandler(IMessageListener listener) {
+        this(listener, null, null, null);
+    }
+
+    /**
+     * @param listener listener receiving the messages
+     * @param fieldProjection fields to retain when deserializing messages, null to retain all of them
+     * @param messageFilter conditions to drop messages before deserializing them, null to keep all of them
+     * @param inputMetrics metrics of the input, shared by its connections, may be null
+     */
+    public BeatsHandler(IMessageListener listener, FieldProjection fieldProjection, MessageFilter messageFilter, InputMetrics inputMetrics) {
+        this(listener, fieldProjection, messageFilter, inputMetrics, DEFAULT_MAX_PENDING_BATCHES);
+    }
+
+    /**
+     * @param listener listener receiving the messages
+     * @param fieldProjection fields to retain when deserializing messages, null to retain all of them
+     * @param messageFilter conditions to drop messages before deserializing them, null to keep all of them
+     * @param inputMetrics metrics of the input, shared by its connections, may be null
+     * @param maxPendingBatches batches waiting for an {@link IAsyncMessageListener} before the connection stops being
+     *                          read
+     */
+    public BeatsHandler(IMessageListener listener, FieldProjection fieldProjection, MessageFilter messageFilter, InputMetrics inputMetrics, int maxPendingBatches) {
+        if (maxPendingBatches <= 0) {
+            throw new IllegalArgumentException("Maximum pending batches must be positive, got " + maxPendingBatches);
+        }
+        this.maxPendingBatches = maxPendingBatches;
         messageListener = listener;
+        asyncMessageListener = listener instanceof IAsyncMessageListener ? (IAsyncMessageListener) listener : null;
+        this.fieldProjection = fieldProjection;
+        this.messageFilter = messageFilter;
+        this.inputMetrics = inputMetrics;
     }
 
     @Override
     public void channelActive(final ChannelHandlerContext ctx) throws Exception {
         context = ctx;
+        connectionState = ConnectionState.of(ctx.channel());
+        if (inputMetrics != null) {
+            inputMetrics.register(connectionState);
+            executorMetrics = inputMetrics.getExecutorMetrics(ctx.executor());
+        }
         if (logger.isTraceEnabled()) {
             logger.trace(format("Channel Active"));
         }
@@ -38,9 +91,17 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
+        if (inputMetrics != null && connectionState != null) {
+            inputMetrics.unregister(connectionState);
+        }
         if (logger.isTraceEnabled()) {
             logger.trace(format("Channel Inactive"));
         }
+        if (logger.isDebugEnabled() && connectionState != null && connectionState.getAckLatency() != null) {
+            final LatencyHistogram latency = connectionState.getAckLatency();
+            logger.debug(format("ACK latency of " + latency.getCount() + " windows in microseconds: p50 " + latency.getPercentileMicros(50)
+                    + ", p99 " + latency.getPercentileMicros(99) + ", p99.9 " + latency.getPercentileMicros(99.9) + ", max " + latency.getMaxMicros()));
+        }
         messageListener.onConnectionClose(ctx);
     }
 
@@ -50,19 +111,35 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
         if (logger.isDebugEnabled()) {
             logger.debug(format("Received a new payload"));
         }
+        if (asyncMessageListener != null && !isQuietPeriod) {
+            if (FlightRecorderEvents.isBatchDispatchEnabled()) {
+                // the batch may be released as soon as the listener accepted its messages
+                final int events = batch.size();
+                final long start = System.nanoTime();
+                processBatchAndScheduleAck(ctx, batch);
+                FlightRecorderEvents.batchDispatch(ctx.channel(), System.nanoTime() - start, events, true);
+            } else {
+                processBatchAndScheduleAck(ctx, batch);
+            }
+            return;
+        }
         try {
-            if (isQuietPeriod.get()) {
+            if (isQuietPeriod) {
                 if (logger.isDebugEnabled()) {
                     logger.debug(format("Received batch but no executors available, ignoring..."));
                 }
+            } else if (FlightRecorderEvents.isBatchDispatchEnabled()) {
+                final long start = System.nanoTime();
+                processBatchAndSendAck(ctx, batch);
+                FlightRecorderEvents.batchDispatch(ctx.channel(), System.nanoTime() - start, batch.size(), false);
             } else {
                 processBatchAndSendAck(ctx, batch);
             }
         } finally {
             //this channel is done processing this payload, instruct the connection handler to stop sending TCP keep alive
-            ctx.channel().attr(ConnectionHandler.CHANNEL_SEND_KEEP_ALIVE).get().set(false);
+            connectionState.setWindowPending(false);
             if (logger.isDebugEnabled()) {
-                logger.debug("{}: batches pending: {}", ctx.channel().id().asShortText(), ctx.channel().attr(ConnectionHandler.CHANNEL_SEND_KEEP_ALIVE).get().get());
+                logger.debug("{}: batches pending: {}", ctx.channel().id().asShortText(), connectionState.isWindowPending());
             }
             batch.release();
             ctx.flush();
@@ -101,7 +178,7 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
                 if (cause instanceof RejectedExecutionException) {
                     // we no longer have event executors available since they are terminated, mostly by shutdown process
                     if (Objects.nonNull(cause.getMessage()) && cause.getMessage().contains(executorTerminatedMessage)) {
-                        this.isQuietPeriod.compareAndSet(false, true);
+                        this.isQuietPeriod = true;
                     }
                 } else {
                     super.exceptionCaught(ctx, cause);
@@ -116,23 +193,118 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
     private void processBatchAndSendAck(ChannelHandlerContext ctx, Batch batch) {
         if (batch.isEmpty()) {
             logger.debug("Sending 0-seq ACK for empty batch");
-            writeAck(ctx, batch.getProtocol(), 0);
+            writeBatchAck(ctx, batch, 0);
         }
         for (Message message : batch) {
             if (logger.isDebugEnabled()) {
                 logger.debug(format("Sending a new message for the listener, sequence: " + message.getSequence()));
             }
-            messageListener.onNewMessage(ctx, message);
+            if (isDropped(message)) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace(format("Dropping message number " + message.getSequence()));
+                }
+            } else {
+                message.setFieldProjection(fieldProjection);
+                message.setConnectionState(connectionState);
+                final long start = executorMetrics == null ? 0 : System.nanoTime();
+                try {
+                    messageListener.onNewMessage(ctx, message);
+                } finally {
+                    recordListenerTime(start);
+                }
+            }
 
             if (needAck(message)) {
                 if (logger.isTraceEnabled()) {
                     logger.trace(format("Acking message number " + message.getSequence()));
                 }
-                writeAck(ctx, message.getBatch().getProtocol(), message.getSequence());
+                writeBatchAck(ctx, message.getBatch(), message.getSequence());
             }
         }
     }
 
+    /*
+     * Hands the messages of the batch to the asynchronous listener without waiting. The ACK is written once the
+     * listener accepted them and the previous batches of this channel are acknowledged, so ACKs keep the order of the
+     * windows. The keep alive flag stays set while batches are pending, and we stop reading from the socket when too
+     * many batches are waiting for the downstream queue.
+     */
+    private void processBatchAndScheduleAck(final ChannelHandlerContext ctx, final Batch batch) {
+        // without a filter the batch is handed as is, otherwise the kept messages are copied to a list
+        final List<Message> kept = messageFilter == null ? null : new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            if (isDropped(message)) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace(format("Dropping message number " + message.getSequence()));
+                }
+                continue;
+            }
+            message.setFieldProjection(fieldProjection);
+            message.setConnectionState(connectionState);
+            if (kept != null) {
+                kept.add(message);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(format("Sending a new batch for the async listener, highest sequence: " + batch.getHighestSequence()));
+        }
+
+        final CompletableFuture<?> batchAccepted = acceptAsync(ctx, kept == null ? batch : kept);
+        final int sequence = batch.isEmpty() ? 0 : batch.getHighestSequence();
+
+        pendingBatches++;
+        if (pendingBatches >= maxPendingBatches) {
+            ctx.channel().config().setAutoRead(false);
+        }
+
+        // the messages are slices of the batch buffer, only release it once the listener is done with all of them
+        batchAccepted.whenComplete((ignored, cause) -> batch.release());
+        lastBatchAcked = CompletableFuture.allOf(lastBatchAcked, batchAccepted)
+                .whenCompleteAsync((ignored, cause) -> {
+                    pendingBatches--;
+                    if (pendingBatches < maxPendingBatches) {
+                        ctx.channel().config().setAutoRead(true);
+                    }
+                    if (cause == null) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(format("Acking message number " + sequence));
+                        }
+                        writeBatchAck(ctx, batch, sequence);
+                        if (pendingBatches == 0) {
+                            connectionState.setWindowPending(false);
+                        }
+                        ctx.flush();
+                    } else if (batchAccepted.isCompletedExceptionally()) {
+                        // batches following a rejected one are silently dropped, the channel is already closing
+                        try {
+                            exceptionCaught(ctx, unwrapCompletionException(cause));
+                        } catch (Exception e) {
+                            logger.debug(format("Failed to handle rejected batch"), e);
+                        }
+                    }
+                }, ctx.executor());
+    }
+
+    private CompletableFuture<?> acceptAsync(ChannelHandlerContext ctx, Iterable<Message> messages) {
+        final long start = executorMetrics == null ? 0 : System.nanoTime();
+        try {
+            return asyncMessageListener.onNewBatch(ctx, messages).toCompletableFuture();
+        } catch (RuntimeException e) {
+            final CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        } finally {
+            recordListenerTime(start);
+        }
+    }
+
+    private static Throwable unwrapCompletionException(final Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            return cause.getCause();
+        }
+        return cause;
+    }
+
     private boolean isNoisyException(final Throwable ex) {
         if (ex instanceof IOException) {
             final String message = ex.getMessage();
@@ -143,6 +315,18 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
         return false;
     }
 
+    // time the executor was blocked by the listener, the Logstash queue blocks it when it is full
+    private void recordListenerTime(long start) {
+        if (executorMetrics != null) {
+            executorMetrics.addListenerTime(System.nanoTime() - start);
+        }
+    }
+
+    // dropped messages are never seen by the listener but still acknowledged with their batch
+    private boolean isDropped(Message message) {
+        return messageFilter != null && messageFilter.shouldDrop(message);
+    }
+
     private boolean needAck(Message message) {
         return message.getSequence() == message.getBatch().getHighestSequence();
     }
@@ -151,6 +335,28 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
         ctx.write(new Ack(protocol, sequence));
     }
 
+    /*
+     * Writes the final ACK of a window and records the time elapsed since its first byte was read, which includes
+     * the time spent waiting for the executor and for the listener.
+     */
+    private void writeBatchAck(ChannelHandlerContext ctx, Batch batch, int sequence) {
+        writeAck(ctx, batch.getProtocol(), sequence);
+        long latency = -1;
+        if (batch.getReceivedNanos() != 0) {
+            latency = System.nanoTime() - batch.getReceivedNanos();
+            // the histogram of the connection is only read by the debug log written when it closes
+            if (connectionState != null && logger.isDebugEnabled()) {
+                connectionState.recordAckLatency(latency);
+            }
+            if (inputMetrics != null) {
+                inputMetrics.getAckLatency().record(latency);
+            }
+        }
+        if (FlightRecorderEvents.isAckWrittenEnabled()) {
+            FlightRecorderEvents.ackWritten(ctx.channel(), sequence, latency);
+        }
+    }
+
     /*
      * There is no easy way in Netty to support MDC directly,
      * we will use similar logic than Netty's LoggingHandler
@@ -5,8 +5,11 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.logstash.beats.jfr.FlightRecorderEvents;
 
 
 import java.io.IOException;
@@ -45,9 +48,45 @@ public class BeatsParser extends ByteToMessageDecoder {
     private int requiredBytes = 0;
     private int sequence = 0;
     private boolean decodingCompressedBuffer = false;
+    // offset in the stream of the connection of the next byte to decode, compressed frames count for their compressed size
+    private long streamOffset = 0;
+    private ConnectionState connectionState;
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws InvalidFrameProtocolException, IOException {
+        final int readerIndex = in.readerIndex();
+        try {
+            decodeFrame(ctx, in, out);
+        } finally {
+            streamOffset += in.readerIndex() - readerIndex;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * When the connection is idle for reads, gives back the unused capacity of the buffer holding the bytes of a
+     * partially received frame. Buffers are sized for the reads from the socket, much larger than the few bytes an idle
+     * beat usually left behind, and would otherwise stay allocated until the frame is completed.
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+            trimCumulation();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    // the cumulation is released by the decoder once all its bytes are decoded, only partial frames are left
+    private void trimCumulation() {
+        final ByteBuf cumulation = internalBuffer();
+        if (cumulation.refCnt() != 1 || cumulation.isReadOnly() || cumulation.capacity() == cumulation.readableBytes()) {
+            return;
+        }
+        cumulation.discardReadBytes();
+        cumulation.capacity(cumulation.writerIndex());
+    }
+
+    private void decodeFrame(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws InvalidFrameProtocolException, IOException {
         if(!hasEnoughBytes(in)) {
             if (decodingCompressedBuffer){
                 throw new InvalidFrameProtocolException("Insufficient bytes in compressed content to decode: " + currentState);
@@ -69,6 +108,7 @@ public class BeatsParser extends ByteToMessageDecoder {
                         logger.trace("Frame version 1 detected");
                         batch = new V1Batch();
                     }
+                    batch.setReceivedNanos(connectionState(ctx).readTimeOf(streamOffset));
                 }
                 transition(States.READ_FRAME_TYPE);
                 break;
@@ -103,6 +143,9 @@ public class BeatsParser extends ByteToMessageDecoder {
             case READ_WINDOW_SIZE: {
                 logger.trace("Running: READ_WINDOW_SIZE");
                 batch.setBatchSize((int) in.readUnsignedInt());
+                if (FlightRecorderEvents.isFrameDecodedEnabled()) {
+                    FlightRecorderEvents.frameDecoded(ctx.channel(), (char) Protocol.CODE_WINDOW_SIZE, 4);
+                }
 
                 // This is unlikely to happen but I have no way to known when a frame is
                 // actually completely done other than checking the windows and the sequence number,
@@ -110,12 +153,13 @@ public class BeatsParser extends ByteToMessageDecoder {
                 // events buffered I should send the current batch down to the next handler.
                 if(!batch.isEmpty()) {
                     logger.warn("New window size received but the current batch was not complete, sending the current batch");
+                    connectionState(ctx).getMetrics().addPartialWindow();
                     out.add(batch);
-                    batchComplete();
+                    batchComplete(ctx);
                 } else if (batch.getBatchSize() == 0) {
                     logger.debug("New window size 0 received, sending an empty batch");
                     out.add(batch);
-                    batchComplete();
+                    batchComplete(ctx);
                 }
 
                 transition(States.READ_HEADER);
@@ -127,6 +171,7 @@ public class BeatsParser extends ByteToMessageDecoder {
                 sequence = (int) in.readUnsignedInt();
                 int fieldsCount = (int) in.readUnsignedInt();
                 int count = 0;
+                long size = 0;
 
                 if (fieldsCount <= 0) {
                     throw new InvalidFrameProtocolException("Invalid number of fields, received: " + fieldsCount);
@@ -146,15 +191,20 @@ public class BeatsParser extends ByteToMessageDecoder {
                     dataBuf.release();
 
                     dataMap.put(field, data);
+                    size += fieldLength + dataLength;
 
                     count++;
                 }
                 Message message = new Message(sequence, dataMap);
                 ((V1Batch)batch).addMessage(message);
+                connectionState(ctx).getMetrics().addEvent(size);
+                if (FlightRecorderEvents.isFrameDecodedEnabled()) {
+                    FlightRecorderEvents.frameDecoded(ctx.channel(), (char) Protocol.CODE_FRAME, size);
+                }
 
                 if (batch.isComplete()){
                     out.add(batch);
-                    batchComplete();
+                    batchComplete(ctx);
                 }
                 transition(States.READ_HEADER);
 
@@ -188,7 +238,7 @@ public class BeatsParser extends ByteToMessageDecoder {
                     decodingCompressedBuffer = true;
                     try {
                         while (buffer.readableBytes() > 0) {
-                            decode(ctx, buffer, out);
+                            decodeFrame(ctx, buffer, out);
                         }
                     } finally {
                         decodingCompressedBuffer = false;
@@ -200,12 +250,16 @@ public class BeatsParser extends ByteToMessageDecoder {
             case READ_JSON: {
                 logger.trace("Running: READ_JSON");
                 ((V2Batch)batch).addMessage(sequence, in, requiredBytes);
+                connectionState(ctx).getMetrics().addEvent(requiredBytes);
+                if (FlightRecorderEvents.isFrameDecodedEnabled()) {
+                    FlightRecorderEvents.frameDecoded(ctx.channel(), (char) Protocol.CODE_JSON_FRAME, requiredBytes);
+                }
                 if(batch.isComplete()) {
                     if(logger.isTraceEnabled()) {
                         logger.trace("Sending batch size: " + this.batch.size() + ", windowSize: " + batch.getBatchSize() + " , seq: " + sequence);
                     }
                     out.add(batch);
-                    batchComplete();
+                    batchComplete(ctx);
                 }
 
                 transition(States.READ_HEADER);
@@ -219,7 +273,16 @@ public class BeatsParser extends ByteToMessageDecoder {
         // Use the compressed size as the safe start for the buffer.
         ByteBuf buffer = ctx.alloc().buffer(requiredBytes);
         try {
+            final boolean recorded = FlightRecorderEvents.isInflateEnabled();
+            final long start = recorded ? System.nanoTime() : 0;
             decompressImpl(in, buffer);
+            connectionState(ctx).getMetrics().addCompressedFrame(requiredBytes, buffer.readableBytes());
+            if (recorded) {
+                FlightRecorderEvents.inflate(ctx.channel(), System.nanoTime() - start, requiredBytes, buffer.readableBytes());
+            }
+            if (FlightRecorderEvents.isFrameDecodedEnabled()) {
+                FlightRecorderEvents.frameDecoded(ctx.channel(), (char) Protocol.CODE_COMPRESSED_FRAME, requiredBytes);
+            }
             fn.accept(buffer);
         } finally {
             buffer.release();
@@ -254,7 +317,15 @@ public class BeatsParser extends ByteToMessageDecoder {
         this.requiredBytes = requiredBytes;
     }
 
-    private void batchComplete() {
+    private ConnectionState connectionState(ChannelHandlerContext ctx) {
+        if (connectionState == null) {
+            connectionState = ConnectionState.of(ctx.channel());
+        }
+        return connectionState;
+    }
+
+    private void batchComplete(ChannelHandlerContext ctx) {
+        connectionState(ctx).getMetrics().addWindow();
         requiredBytes = 0;
         sequence = 0;
         batch = null;
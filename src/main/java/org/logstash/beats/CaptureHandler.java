@@ -0,0 +1,84 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records the bytes received on a connection to a capture file, with the time of every read, so that the traffic of
+ * real beats can be replayed in benchmarks. It must be added after the SSL handler, captures hold the decrypted
+ * protocol.
+ * <p>
+ * A capture file starts with a header: the {@link #MAGIC} and {@link #VERSION} ints, the connection time in epoch
+ * milliseconds as a long and the remote address as a modified UTF-8 string. Every read follows as the nanoseconds
+ * elapsed since the connection as a long, the number of bytes as an int, the number of deflated bytes as an int and
+ * the bytes deflated with zlib. Files are named after the connection time and the channel id, use
+ * {@link CaptureReader} to read them.
+ * </p>
+ * <p>
+ * Files are written by the thread of a {@link CaptureWriter}, the event loop only queues the reads. A read that does
+ * not fit in the queue of the writer or a failure to write only stops the capture of that connection, the received
+ * bytes are always handed to the next handler.
+ * </p>
+ */
+public class CaptureHandler extends ChannelInboundHandlerAdapter {
+    private final static Logger logger = LogManager.getLogger(CaptureHandler.class);
+
+    // "BCAP"
+    public static final int MAGIC = 0x42434150;
+    public static final int VERSION = 2;
+    public static final String FILE_SUFFIX = ".bcap";
+
+    private final CaptureWriter writer;
+    private CaptureWriter.Capture capture;
+    private long startNanos;
+
+    /**
+     * @param writer {@link CaptureWriter} of the server, creating a capture file for the connection
+     */
+    public CaptureHandler(CaptureWriter writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        final long startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        capture = writer.open("beats-" + startMillis + "-" + ctx.channel().id().asShortText(), startMillis,
+                String.valueOf(ctx.channel().remoteAddress()));
+        logger.debug("{}: capturing received bytes to {}", ctx.channel().id().asShortText(), capture.getFile());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (capture != null && msg instanceof ByteBuf) {
+            if (!writer.write(capture, System.nanoTime() - startNanos, (ByteBuf) msg)) {
+                logger.warn("{}: stopping the capture to {}, the capture files are not written fast enough",
+                        ctx.channel().id().asShortText(), capture.getFile());
+                close();
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        close();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        close();
+    }
+
+    private void close() {
+        if (capture != null) {
+            writer.close(capture);
+            capture = null;
+        }
+    }
+}
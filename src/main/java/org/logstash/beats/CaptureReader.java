@@ -0,0 +1,139 @@
+package org.logstash.beats;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a capture file written by {@link CaptureHandler}, one read of the connection at a time. Files of the first
+ * version, whose reads are not deflated, are still read.
+ */
+public class CaptureReader implements Closeable {
+
+    private final Path file;
+    private final DataInputStream in;
+    private final int version;
+    private final Inflater inflater = new Inflater();
+    private byte[] deflated = new byte[8192];
+    private final long startMillis;
+    private final String remoteAddress;
+
+    private CaptureReader(Path file, DataInputStream in) throws IOException {
+        this.file = file;
+        this.in = in;
+        if (in.readInt() != CaptureHandler.MAGIC) {
+            throw new IOException(file + " is not a capture file");
+        }
+        this.version = in.readInt();
+        if (version < 1 || version > CaptureHandler.VERSION) {
+            throw new IOException("Unsupported version " + version + " of capture file " + file);
+        }
+        this.startMillis = in.readLong();
+        this.remoteAddress = in.readUTF();
+    }
+
+    public static CaptureReader open(Path file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            return new CaptureReader(file, in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return time of the connection in epoch milliseconds
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Reads the next read of the connection. A read truncated because the capture was interrupted is ignored.
+     * @return the next {@link Read}, null at the end of the capture
+     */
+    public Read next() throws IOException {
+        final long nanos;
+        try {
+            nanos = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid read of " + length + " bytes in capture file " + file);
+            }
+            final byte[] bytes = new byte[length];
+            if (version == 1) {
+                in.readFully(bytes);
+            } else {
+                inflate(bytes);
+            }
+            return new Read(nanos, bytes);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void inflate(byte[] bytes) throws IOException {
+        final int deflatedLength = in.readInt();
+        if (deflatedLength < 0) {
+            throw new IOException("Invalid read of " + deflatedLength + " deflated bytes in capture file " + file);
+        }
+        if (deflated.length < deflatedLength) {
+            deflated = new byte[deflatedLength];
+        }
+        in.readFully(deflated, 0, deflatedLength);
+        inflater.reset();
+        inflater.setInput(deflated, 0, deflatedLength);
+        try {
+            if (inflater.inflate(bytes) != bytes.length || !inflater.finished()) {
+                throw new IOException("Corrupted read in capture file " + file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted read in capture file " + file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * Bytes received by one read of the connection.
+     */
+    public static class Read {
+        private final long nanos;
+        private final byte[] bytes;
+
+        Read(long nanos, byte[] bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return nanoseconds elapsed between the connection and the read
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import static org.logstash.beats.util.DaemonThreadFactory.daemonThreadFactory;
+
+/**
+ * Writes the capture files of the connections of a server from a single thread, so that the event loops never touch
+ * the disk. The reads waiting to be written are bounded in bytes: a connection whose read does not fit stops being
+ * captured, its file is closed with the reads accepted so far.
+ * <p>
+ * Every read is deflated on its own with a deflater shared by all the captures, an open capture only costs its file
+ * handle. Compressed windows of the beats do not shrink much, their JSON frames do.
+ * </p>
+ */
+public class CaptureWriter {
+    private final static Logger logger = LogManager.getLogger(CaptureWriter.class);
+
+    static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+    // nanoseconds, length and deflated length of a read
+    private static final int READ_HEADER_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final long maxPendingBytes;
+    private final ExecutorService executor;
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    // only used by the thread of the executor
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] input = new byte[8192];
+    private byte[] output = new byte[8192];
+
+    /**
+     * @param id id of the server, names the writer thread
+     * @param directory existing directory where the capture files are created
+     */
+    public CaptureWriter(String id, Path directory) {
+        this(id, directory, MAX_PENDING_BYTES);
+    }
+
+    CaptureWriter(String id, Path directory, long maxPendingBytes) {
+        this.directory = directory;
+        this.maxPendingBytes = maxPendingBytes;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                daemonThreadFactory(id + "-capture"));
+    }
+
+    /**
+     * Starts the capture of a connection, its file is created by the writer thread.
+     * @return the {@link Capture} to write the reads of the connection to
+     */
+    Capture open(String name, long startMillis, String remoteAddress) {
+        final Capture capture = new Capture(directory.resolve(name + CaptureHandler.FILE_SUFFIX));
+        submit(() -> capture.open(startMillis, remoteAddress));
+        return capture;
+    }
+
+    /**
+     * Queues a read of a connection, the buffer is retained until it is written.
+     * @return false if the read did not fit in the pending bytes or the writer is stopped, the capture must be closed
+     */
+    boolean write(Capture capture, long nanos, ByteBuf buffer) {
+        final int length = buffer.readableBytes();
+        if (pendingBytes.addAndGet(length) > maxPendingBytes) {
+            pendingBytes.addAndGet(-length);
+            return false;
+        }
+        final ByteBuf read = buffer.retainedDuplicate();
+        final boolean queued = submit(() -> {
+            try {
+                capture.write(nanos, read);
+            } finally {
+                read.release();
+                pendingBytes.addAndGet(-length);
+            }
+        });
+        if (!queued) {
+            read.release();
+            pendingBytes.addAndGet(-length);
+        }
+        return queued;
+    }
+
+    void close(Capture capture) {
+        submit(capture::close);
+    }
+
+    /**
+     * @return bytes of the reads waiting to be written
+     */
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Writes the reads already queued and closes their files, then stops the writer thread.
+     */
+    public void stop() {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                deflater.end();
+            } else {
+                logger.warn("Capture files were not written within {} seconds, some are incomplete", STOP_TIMEOUT_SECONDS);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the writer is stopped
+            return false;
+        }
+    }
+
+    /*
+     * Deflates the read after its header in the output buffer and returns the length of the record.
+     */
+    private int encode(long nanos, ByteBuf read) {
+        final int length = read.readableBytes();
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        read.getBytes(read.readerIndex(), input, 0, length);
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int end = READ_HEADER_BYTES;
+        while (!deflater.finished()) {
+            if (end == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            end += deflater.deflate(output, end, output.length - end);
+        }
+        writeLong(output, 0, nanos);
+        writeInt(output, Long.BYTES, length);
+        writeInt(output, Long.BYTES + Integer.BYTES, end - READ_HEADER_BYTES);
+        return end;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + Integer.BYTES, (int) value);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Capture file of a connection, written by the thread of the {@link CaptureWriter}.
+     */
+    final class Capture {
+        private final Path file;
+        private OutputStream out;
+
+        private Capture(Path file) {
+            this.file = file;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        private void open(long startMillis, String remoteAddress) {
+            try {
+                final ByteArrayOutputStream header = new ByteArrayOutputStream();
+                final DataOutputStream data = new DataOutputStream(header);
+                data.writeInt(CaptureHandler.MAGIC);
+                data.writeInt(CaptureHandler.VERSION);
+                data.writeLong(startMillis);
+                data.writeUTF(remoteAddress);
+                out = Files.newOutputStream(file);
+                out.write(header.toByteArray());
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void write(long nanos, ByteBuf read) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.write(output, 0, encode(nanos, read));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException cause) {
+            logger.warn("Stopping the capture to {}: {}", file, cause.getMessage());
+            close();
+        }
+
+        private void close() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close capture file {}: {}", file, e.getMessage());
+                }
+                out = null;
+            }
+        }
+    }
+}
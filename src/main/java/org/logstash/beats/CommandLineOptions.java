@@ -0,0 +1,54 @@
+package org.logstash.beats;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options of the command line tools, given as {@code --name=value}. Every option is read once, the options left once
+ * a tool is configured are reported as unknown by {@link #checkAllRead()}.
+ */
+final class CommandLineOptions {
+
+    private final Map<String, String> options = new HashMap<>();
+
+    private CommandLineOptions() {
+    }
+
+    /**
+     * @param args arguments of the command line
+     * @param from index of the first option in the arguments
+     * @return the parsed options
+     * @throws IllegalArgumentException if an argument is not of the form {@code --name=value}
+     */
+    static CommandLineOptions parse(String[] args, int from) {
+        final CommandLineOptions parsed = new CommandLineOptions();
+        for (int i = from; i < args.length; i++) {
+            final String arg = args[i];
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            parsed.options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return parsed;
+    }
+
+    /**
+     * Reads an option, which is then considered known.
+     * @param name name of the option, without the leading dashes
+     * @param defaultValue value returned when the option is not given
+     * @return the value of the option
+     */
+    String get(String name, String defaultValue) {
+        final String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @throws IllegalArgumentException if some options were given but never read
+     */
+    void checkAllRead() {
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+    }
+}
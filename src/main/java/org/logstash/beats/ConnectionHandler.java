@@ -1,48 +1,122 @@
 package org.logstash.beats;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.timeout.IdleState;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.AttributeKey;
+import io.netty.util.Timeout;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.logstash.beats.jfr.FlightRecorderEvents;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Manages the connection state to the beats client.
+ * <p>
+ * Idle connections are detected by the {@link IdleTracker} of the server when one is given, otherwise by the
+ * {@link IdleStateEvent}s of an {@link io.netty.handler.timeout.IdleStateHandler} placed before this handler.
+ * </p>
  */
 public class ConnectionHandler extends ChannelDuplexHandler {
     private final static Logger logger = LogManager.getLogger(ConnectionHandler.class);
 
+    /**
+     * @deprecated the attribute is no longer set on the channels, use {@link ConnectionState#isWindowPending()}
+     */
+    @Deprecated
     public static AttributeKey<AtomicBoolean> CHANNEL_SEND_KEEP_ALIVE = AttributeKey.valueOf("channel-send-keep-alive");
 
+    private final IdleTracker idleTracker;
+    private ConnectionState connectionState;
+
+    // idle tracking state, only accessed from the event loop of the channel
+    private long lastReadNanos;
+    private long lastWriteNanos;
+    private long nextKeepAliveCheckNanos;
+    private boolean readerIdleSignaled;
+    private Timeout idleTimeout;
+
+    public ConnectionHandler() {
+        this(null);
+    }
+
+    ConnectionHandler(IdleTracker idleTracker) {
+        this.idleTracker = idleTracker;
+    }
+
     @Override
     public void channelActive(final ChannelHandlerContext ctx) throws Exception {
-        ctx.channel().attr(CHANNEL_SEND_KEEP_ALIVE).set(new AtomicBoolean(false));
+        connectionState = ConnectionState.of(ctx.channel());
         if (logger.isTraceEnabled()) {
             logger.trace("{}: channel activated", ctx.channel().id().asShortText());
         }
+        if (idleTracker != null) {
+            final long now = System.nanoTime();
+            lastReadNanos = now;
+            lastWriteNanos = now;
+            nextKeepAliveCheckNanos = now + idleTracker.getWriterIdleNanos();
+            scheduleIdleCheck(ctx, now);
+        }
         super.channelActive(ctx);
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancelIdleCheck();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        cancelIdleCheck();
+    }
+
     /**
      * {@inheritDoc}
-     * Sets the flag that the keep alive should be sent. {@link BeatsHandler} will un-set it. It is important that this handler comes before the {@link BeatsHandler} in the channel pipeline.
+     * Sets the flag of the {@link ConnectionState} that the keep alive should be sent. {@link BeatsHandler} will un-set it. It is important that this handler comes before the {@link BeatsHandler} in the channel pipeline.
      * Note - For large payloads, this method may be called many times more often then the BeatsHandler#channelRead due to decoder aggregating the payload.
+     * The time of every read is recorded on the {@link ConnectionState}, to measure the ACK latency of windows from their first byte.
      */
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        ctx.channel().attr(CHANNEL_SEND_KEEP_ALIVE).get().set(true);
+        final long now = System.nanoTime();
+        lastReadNanos = now;
+        readerIdleSignaled = false;
+        if (connectionState != null) {
+            if (msg instanceof ByteBuf) {
+                connectionState.markRead(((ByteBuf) msg).readableBytes(), now);
+            }
+            connectionState.setWindowPending(true);
+        }
         if (logger.isDebugEnabled()) {
-            logger.debug("{}: batches pending: {}", ctx.channel().id().asShortText(),ctx.channel().attr(CHANNEL_SEND_KEEP_ALIVE).get().get());
+            logger.debug("{}: batches pending: {}", ctx.channel().id().asShortText(), sendKeepAlive(ctx));
         }
         super.channelRead(ctx, msg);
     }
 
+    /**
+     * {@inheritDoc}
+     * The write is recorded for the idle checks when it is handed to the channel, like flushes, rather than once it
+     * completes.
+     */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastWriteNanos = System.nanoTime();
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        lastWriteNanos = System.nanoTime();
+        super.flush(ctx);
+    }
+
     /**
      * {@inheritDoc}
      * <br/>
@@ -62,37 +136,115 @@ public class ConnectionHandler extends ChannelDuplexHandler {
      */
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        IdleStateEvent e;
         if (evt instanceof IdleStateEvent) {
-            e = (IdleStateEvent) evt;
+            final IdleStateEvent e = (IdleStateEvent) evt;
             if (e.state() == IdleState.WRITER_IDLE) {
-                if (sendKeepAlive(ctx)) {
-                    ChannelFuture f = ctx.writeAndFlush(new Ack(Protocol.VERSION_2, 0));
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("{}: sending keep alive ack to libbeat", ctx.channel().id().asShortText());
-                        f.addListener((ChannelFutureListener) future -> {
-                            if (future.isSuccess()) {
-                                logger.trace("{}: acking was successful", ctx.channel().id().asShortText());
-                            } else {
-                                logger.trace("{}: acking failed", ctx.channel().id().asShortText());
-                            }
-                        });
-                    }
-                }
+                keepAliveIfPending(ctx);
             } else if (e.state() == IdleState.ALL_IDLE) {
-                logger.debug("{}: reader and writer are idle, closing remote connection", ctx.channel().id().asShortText());
-                ctx.flush();
-                ChannelFuture f = ctx.close();
-                if (logger.isTraceEnabled()) {
-                    f.addListener((future) -> {
-                        if (future.isSuccess()) {
-                            logger.trace("closed ctx successfully");
-                        } else {
-                            logger.trace("could not close ctx");
-                        }
-                    });
-                }
+                closeIdle(ctx);
+            } else {
+                ctx.fireUserEventTriggered(evt);
             }
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    /*
+     * Called from the event loop when the idle timeout of the connection expires, it plays the WRITER_IDLE and
+     * ALL_IDLE events of the IdleStateHandler, keep alives count as writes, and schedules the next check. Once per
+     * idle period without reads a READER_IDLE event is fired to the following handlers, so that the decoders give back
+     * the buffers they hold for partially received frames.
+     */
+    private void checkIdle(ChannelHandlerContext ctx) {
+        idleTimeout = null;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        final long allIdleNanos = idleTracker.getAllIdleNanos();
+        if (allIdleNanos > 0 && now - Math.max(lastReadNanos, lastWriteNanos) >= allIdleNanos) {
+            closeIdle(ctx);
+            return;
+        }
+        if (!readerIdleSignaled && now - lastReadNanos >= idleTracker.getWriterIdleNanos()) {
+            readerIdleSignaled = true;
+            ctx.fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+        }
+        if (now - nextKeepAliveCheckNanos >= 0) {
+            if (now - lastWriteNanos >= idleTracker.getWriterIdleNanos()) {
+                keepAliveIfPending(ctx);
+                nextKeepAliveCheckNanos = now + idleTracker.getWriterIdleNanos();
+            } else {
+                nextKeepAliveCheckNanos = lastWriteNanos + idleTracker.getWriterIdleNanos();
+            }
+        }
+        scheduleIdleCheck(ctx, now);
+    }
+
+    private void scheduleIdleCheck(ChannelHandlerContext ctx, long now) {
+        long deadline = nextKeepAliveCheckNanos;
+        if (!readerIdleSignaled) {
+            final long readerIdleDeadline = lastReadNanos + idleTracker.getWriterIdleNanos();
+            if (readerIdleDeadline - deadline < 0) {
+                deadline = readerIdleDeadline;
+            }
+        }
+        if (idleTracker.getAllIdleNanos() > 0) {
+            final long allIdleDeadline = Math.max(lastReadNanos, lastWriteNanos) + idleTracker.getAllIdleNanos();
+            if (allIdleDeadline - deadline < 0) {
+                deadline = allIdleDeadline;
+            }
+        }
+        idleTimeout = idleTracker.schedule(timeout -> ctx.executor().execute(() -> checkIdle(ctx)), Math.max(0, deadline - now));
+    }
+
+    private void cancelIdleCheck() {
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+            idleTimeout = null;
+        }
+    }
+
+    private void keepAliveIfPending(ChannelHandlerContext ctx) {
+        if (sendKeepAlive(ctx)) {
+            if (connectionState != null) {
+                connectionState.getMetrics().addKeepAliveAck();
+            }
+            if (FlightRecorderEvents.isKeepAliveSentEnabled()) {
+                FlightRecorderEvents.keepAliveSent(ctx.channel());
+            }
+            // written from this context, it does not go through write()
+            lastWriteNanos = System.nanoTime();
+            ChannelFuture f = ctx.writeAndFlush(new Ack(Protocol.VERSION_2, 0));
+            if (logger.isTraceEnabled()) {
+                logger.trace("{}: sending keep alive ack to libbeat", ctx.channel().id().asShortText());
+                f.addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        logger.trace("{}: acking was successful", ctx.channel().id().asShortText());
+                    } else {
+                        logger.trace("{}: acking failed", ctx.channel().id().asShortText());
+                    }
+                });
+            }
+        }
+    }
+
+    private void closeIdle(ChannelHandlerContext ctx) {
+        logger.debug("{}: reader and writer are idle, closing remote connection", ctx.channel().id().asShortText());
+        if (FlightRecorderEvents.isIdleCloseEnabled()) {
+            FlightRecorderEvents.idleClose(ctx.channel());
+        }
+        ctx.flush();
+        ChannelFuture f = ctx.close();
+        if (logger.isTraceEnabled()) {
+            f.addListener((future) -> {
+                if (future.isSuccess()) {
+                    logger.trace("closed ctx successfully");
+                } else {
+                    logger.trace("could not close ctx");
+                }
+            });
         }
     }
 
@@ -103,10 +255,10 @@ public class ConnectionHandler extends ChannelDuplexHandler {
      *     <li>This Handler is associated to an {@link io.netty.channel.EventLoopGroup} that has guarantees that the associated {@link io.netty.channel.EventLoop} will never block.</li>
      *     <li>The {@link BeatsHandler} un-sets only after it has processed this channel's payload.</li>
      * </ul>
-     * @param ctx the {@link ChannelHandlerContext} used to curry the flag.
+     * @param ctx the {@link ChannelHandlerContext} of the channel.
      * @return  Returns true if this channel/connection has NOT finished processing it's payload. False otherwise.
      */
      public boolean sendKeepAlive(ChannelHandlerContext ctx) {
-        return  ctx.channel().hasAttr(CHANNEL_SEND_KEEP_ALIVE)  && ctx.channel().attr(CHANNEL_SEND_KEEP_ALIVE).get().get();
+        return connectionState != null && connectionState.isWindowPending();
     }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package org.logstash.beats;
+
+/**
+ * Throughput and protocol counters of a connection.
+ * <p>
+ * Every counter has a single writer: bytes read and keep alive ACKs are counted by the event loop of the channel,
+ * the other counters by the executor running its {@link BeatsParser}. Counters can be read from any thread.
+ * </p>
+ */
+public class ConnectionMetrics {
+
+    private volatile long bytesRead;
+    private volatile long compressedBytes;
+    private volatile long inflatedBytes;
+    private volatile long windows;
+    private volatile long events;
+    private volatile long eventBytes;
+    private volatile long partialWindows;
+    private volatile long keepAliveAcks;
+
+    /**
+     * @return bytes read from the connection, after TLS decryption
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return bytes of compressed frames received
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return bytes of the compressed frames once inflated
+     */
+    public long getInflatedBytes() {
+        return inflatedBytes;
+    }
+
+    /**
+     * @return windows decoded, including partial ones
+     */
+    public long getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return events decoded
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return average size of the events in bytes, 0 if no event was decoded
+     */
+    public long getAverageEventSize() {
+        final long count = events;
+        return count == 0 ? 0 : eventBytes / count;
+    }
+
+    /**
+     * @return windows handed over before all their events were received, because a new window started
+     */
+    public long getPartialWindows() {
+        return partialWindows;
+    }
+
+    /**
+     * @return keep alive ACKs sent while windows were being processed
+     */
+    public long getKeepAliveAcks() {
+        return keepAliveAcks;
+    }
+
+    void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    void addCompressedFrame(long compressed, long inflated) {
+        compressedBytes += compressed;
+        inflatedBytes += inflated;
+    }
+
+    void addWindow() {
+        windows++;
+    }
+
+    void addEvent(long size) {
+        events++;
+        eventBytes += size;
+    }
+
+    void addPartialWindow() {
+        partialWindows++;
+    }
+
+    void addKeepAliveAck() {
+        keepAliveAcks++;
+    }
+
+    // only used on instances owned by a single thread, to aggregate the counters of several connections
+    void add(ConnectionMetrics other) {
+        bytesRead += other.bytesRead;
+        compressedBytes += other.compressedBytes;
+        inflatedBytes += other.inflatedBytes;
+        windows += other.windows;
+        events += other.events;
+        eventBytes += other.eventBytes;
+        partialWindows += other.partialWindows;
+        keepAliveAcks += other.keepAliveAcks;
+    }
+}
@@ -0,0 +1,242 @@
+package org.logstash.beats;
+
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Objects;
+
+/**
+ * Connection invariant values, computed once per channel and attached to every {@link Message} received on it.
+ */
+public class ConnectionState {
+
+    public static final AttributeKey<ConnectionState> CHANNEL_CONNECTION_STATE = AttributeKey.valueOf("channel-connection-state");
+
+    // reads the parser can be behind before their times are merged, a socket read is up to 64 KiB
+    private static final int READ_MARKS = 8;
+
+    private final Channel channel;
+    private final String ipAddress;
+    private volatile SSLSession sslSession;
+    private volatile TlsPeer tlsPeer;
+    private volatile IdentityStream identityStream;
+    private volatile LatencyHistogram ackLatency;
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+    // set by the event loop when bytes are read, cleared by the executor once their windows are acknowledged
+    private volatile boolean windowPending;
+    private volatile Object listenerState;
+
+    // offset of the first byte and time of the reads the parser has not reached yet, a ring written by the event loop
+    // and consumed by the parser, created on the first read as many connections stay idle
+    private long[] readMarks;
+    private volatile long readsMarked;
+    private volatile long readsTaken;
+    // time of the last read taken by the parser, only accessed by the parser
+    private long takenReadNanos;
+
+    ConnectionState(Channel channel) {
+        this.channel = channel;
+        this.ipAddress = extractIpAddress(channel.remoteAddress());
+    }
+
+    /**
+     * Returns the state attached to the channel, creating it on first access.
+     * @param channel {@link Channel} of the connection
+     * @return the {@link ConnectionState} of the channel
+     */
+    public static ConnectionState of(Channel channel) {
+        final Attribute<ConnectionState> attribute = channel.attr(CHANNEL_CONNECTION_STATE);
+        ConnectionState state = attribute.get();
+        if (state == null) {
+            final ConnectionState created = new ConnectionState(channel);
+            state = attribute.setIfAbsent(created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return the remote IP address of the connection, or null when it is unknown
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Returns the TLS session of the connection, looked up once the handshake completed.
+     * @return the {@link SSLSession}, or null if the connection is not encrypted or the handshake is not done
+     */
+    public SSLSession getSslSession() {
+        SSLSession session = sslSession;
+        if (session == null) {
+            final SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+            if (sslHandler == null || !sslHandler.handshakeFuture().isSuccess()) {
+                return null;
+            }
+            session = sslHandler.engine().getSession();
+            sslSession = session;
+        }
+        return session;
+    }
+
+    /**
+     * Returns the TLS peer of the connection, read from its session once the handshake completed, so that the
+     * messages of the connection do not query the session and the client certificate for every event.
+     * @return the {@link TlsPeer}, or null if the connection is not encrypted or the handshake is not done
+     */
+    public TlsPeer getTlsPeer() {
+        TlsPeer peer = tlsPeer;
+        if (peer == null) {
+            final SSLSession session = getSslSession();
+            if (session == null) {
+                return null;
+            }
+            peer = TlsPeer.of(session);
+            tlsPeer = peer;
+        }
+        return peer;
+    }
+
+    /**
+     * @return the throughput and protocol counters of the connection
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the latencies between the first byte of a window and its ACK for this connection, they are only kept
+     * while the debug logging of the {@link BeatsHandler} is enabled, the distribution of all the connections is kept
+     * by the {@link InputMetrics} of the server.
+     * @return the {@link LatencyHistogram}, or null if no window was recorded
+     */
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    // only called from the executor of the channel, which writes the ACKs
+    void recordAckLatency(long durationNanos) {
+        LatencyHistogram histogram = ackLatency;
+        if (histogram == null) {
+            // connections are numerous, trade precision for footprint
+            histogram = new LatencyHistogram(4);
+            ackLatency = histogram;
+        }
+        histogram.record(durationNanos);
+    }
+
+    /**
+     * Returns the state the message listener attached to the connection, so that it does not look it up for every
+     * message.
+     * @return the state set with {@link #setListenerState(Object)}, null if none was set
+     */
+    public Object getListenerState() {
+        return listenerState;
+    }
+
+    public void setListenerState(Object listenerState) {
+        this.listenerState = listenerState;
+    }
+
+    /**
+     * @return true when bytes were read from the connection and the windows they hold are not acknowledged yet, keep
+     * alives are only sent to such connections
+     */
+    public boolean isWindowPending() {
+        return windowPending;
+    }
+
+    void setWindowPending(boolean windowPending) {
+        this.windowPending = windowPending;
+    }
+
+    /*
+     * Called by the event loop for every buffer read from the socket, before it is handed to the executor running the
+     * parser, so that the time spent waiting for the executor is part of the ACK latency. When the parser is
+     * READ_MARKS reads behind, the read is not marked and its bytes get the time of the previous one.
+     */
+    void markRead(int bytes, long nanoTime) {
+        final long offset = metrics.getBytesRead();
+        metrics.addBytesRead(bytes);
+        long[] marks = readMarks;
+        if (marks == null) {
+            marks = new long[READ_MARKS * 2];
+            readMarks = marks;
+        }
+        final long marked = readsMarked;
+        if (marked - readsTaken < READ_MARKS) {
+            final int slot = (int) (marked % READ_MARKS) * 2;
+            marks[slot] = offset;
+            marks[slot + 1] = nanoTime;
+            readsMarked = marked + 1;
+        }
+    }
+
+    /*
+     * Returns when the byte at the given offset of the stream was read, that is the time of the last read starting at
+     * or before it. The parser asks for the first byte of every window, at increasing offsets.
+     */
+    long readTimeOf(long offset) {
+        final long marked = readsMarked;
+        long taken = readsTaken;
+        if (taken < marked) {
+            final long[] marks = readMarks;
+            while (taken < marked && marks[(int) (taken % READ_MARKS) * 2] <= offset) {
+                takenReadNanos = marks[(int) (taken % READ_MARKS) * 2 + 1];
+                taken++;
+            }
+            readsTaken = taken;
+        }
+        if (takenReadNanos == 0) {
+            // the reads were not recorded, as on channels without a ConnectionHandler
+            return System.nanoTime();
+        }
+        return takenReadNanos;
+    }
+
+    /*
+     * Beats of a connection send the same identity parts for most of their events, reuse the last built identity
+     * stream instead of concatenating it for every event.
+     */
+    String identityStream(Object first, Object second) {
+        IdentityStream cached = identityStream;
+        if (cached == null || !cached.matches(first, second)) {
+            cached = new IdentityStream(first, second);
+            identityStream = cached;
+        }
+        return cached.value;
+    }
+
+    private static String extractIpAddress(SocketAddress remoteAddress) {
+        if (remoteAddress instanceof InetSocketAddress) {
+            final InetSocketAddress address = (InetSocketAddress) remoteAddress;
+            if (address.getAddress() != null) {
+                return address.getAddress().getHostAddress();
+            }
+        }
+        return null;
+    }
+
+    private static final class IdentityStream {
+        private final Object first;
+        private final Object second;
+        private final String value;
+
+        private IdentityStream(Object first, Object second) {
+            this.first = first;
+            this.second = second;
+            this.value = first + "-" + second;
+        }
+
+        private boolean matches(Object first, Object second) {
+            return Objects.equals(this.first, first) && Objects.equals(this.second, second);
+        }
+    }
+}
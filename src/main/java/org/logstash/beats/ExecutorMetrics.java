@@ -0,0 +1,88 @@
+package org.logstash.beats;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Saturation gauges of an executor running channel handlers.
+ * <p>
+ * The time tasks wait in the queue is sampled by periodically submitting a probe task with {@link #probe()}, so the
+ * handlers are not instrumented. The time spent in the message listener tells back-pressure from the Logstash queue,
+ * which blocks the listener, apart from an executor that is only short of threads. The gauges are only kept when
+ * enabled with {@link Server#setExecutorMetricsEnabled(boolean)}.
+ * </p>
+ */
+public class ExecutorMetrics {
+
+    private final String name;
+    private final EventExecutor executor;
+    private final LatencyHistogram taskWait = new LatencyHistogram();
+    // only written by the thread of the executor, which runs the handlers calling the listener
+    private volatile long listenerNanos;
+    private volatile long listenerCalls;
+
+    ExecutorMetrics(String name, EventExecutor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * @return name of the executor, unique within the server
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return tasks waiting to be run, -1 if the executor does not tell
+     */
+    public int getPendingTasks() {
+        if (executor instanceof SingleThreadEventExecutor) {
+            return ((SingleThreadEventExecutor) executor).pendingTasks();
+        }
+        return -1;
+    }
+
+    /**
+     * @return time waited in the queue by the probe tasks
+     */
+    public LatencyHistogram getTaskWait() {
+        return taskWait;
+    }
+
+    /**
+     * @return total time spent handing messages to the message listener, in nanoseconds
+     */
+    public long getListenerNanos() {
+        return listenerNanos;
+    }
+
+    /**
+     * @return number of messages handed to the message listener
+     */
+    public long getListenerCalls() {
+        return listenerCalls;
+    }
+
+    void addListenerTime(long nanos) {
+        listenerNanos += nanos;
+        listenerCalls++;
+    }
+
+    /**
+     * Submits a task recording how long it waited before being run.
+     */
+    void probe() {
+        if (executor.isShuttingDown()) {
+            return;
+        }
+        final long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> taskWait.record(System.nanoTime() - submitted));
+        } catch (RejectedExecutionException e) {
+            // the executor is terminating
+        }
+    }
+}
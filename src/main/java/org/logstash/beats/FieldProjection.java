@@ -0,0 +1,124 @@
+package org.logstash.beats;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Include and exclude lists of fields applied while a {@link Message} is deserialized.
+ * <p>
+ * The Json object is read with a streaming parser and the subtrees that are not retained are skipped without being
+ * allocated. When includes are provided only the included fields (with their whole subtree) are kept, excludes are
+ * then removed from what is left. Fields are referenced with the Logstash field reference syntax, e.g.
+ * {@code [agent][ephemeral_id]}; paths do not traverse arrays. Instances are immutable and can be shared.
+ * </p>
+ */
+public class FieldProjection {
+
+    private final Node root = new Node();
+    private final boolean includeAll;
+
+    public FieldProjection(Collection<String> includes, Collection<String> excludes) {
+        final Collection<String> included = includes == null ? Collections.emptyList() : includes;
+        final Collection<String> excluded = excludes == null ? Collections.emptyList() : excludes;
+        for (String reference : included) {
+            node(reference).included = true;
+        }
+        for (String reference : excluded) {
+            node(reference).excluded = true;
+        }
+        this.includeAll = included.isEmpty();
+        markIncludes(root);
+    }
+
+    private static boolean markIncludes(Node node) {
+        boolean leadsToInclude = node.included;
+        for (Node child : node.children.values()) {
+            leadsToInclude |= markIncludes(child);
+        }
+        node.leadsToInclude = leadsToInclude;
+        return leadsToInclude;
+    }
+
+    private Node node(String reference) {
+        Node node = root;
+        for (String segment : JsonFieldExtractor.parseReference(reference)) {
+            node = node.children.computeIfAbsent(segment, k -> new Node());
+        }
+        return node;
+    }
+
+    /**
+     * Reads the Json object the parser is positioned on, retaining only the projected fields.
+     * @param parser {@link JsonParser} positioned before or on the {@link JsonToken#START_OBJECT} token
+     * @return the projected key/value pairs
+     */
+    Map<String, Object> read(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken() == null ? parser.nextToken() : parser.currentToken();
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a Json object but got " + token);
+        }
+        return readObject(parser, root, includeAll);
+    }
+
+    private Map<String, Object> readObject(JsonParser parser, Node node, boolean included) throws IOException {
+        final Map<String, Object> object = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final Node child = node.children.get(name);
+            final JsonToken token = parser.nextToken();
+
+            final boolean childIncluded = included || (child != null && child.included);
+            if ((child != null && child.excluded) || (!childIncluded && (child == null || !child.leadsToInclude))) {
+                parser.skipChildren();
+            } else if (token == JsonToken.START_OBJECT && child != null && !child.children.isEmpty()) {
+                object.put(name, readObject(parser, child, childIncluded));
+            } else if (childIncluded) {
+                object.put(name, parser.readValueAs(Object.class));
+            } else {
+                // only some descendants are included but this is not an object
+                parser.skipChildren();
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Applies the projection to already materialized key/value pairs, as received with the v1 protocol.
+     * @param data key/value pairs
+     * @return a projected copy of the data
+     */
+    Map project(Map data) {
+        return projectMap(data, root, includeAll);
+    }
+
+    private Map projectMap(Map<?, ?> data, Node node, boolean included) {
+        final Map<Object, Object> object = new HashMap<>();
+        for (Map.Entry<?, ?> entry : data.entrySet()) {
+            final Node child = node.children.get(String.valueOf(entry.getKey()));
+            final boolean childIncluded = included || (child != null && child.included);
+            if ((child != null && child.excluded) || (!childIncluded && (child == null || !child.leadsToInclude))) {
+                continue;
+            }
+            if (entry.getValue() instanceof Map && child != null && !child.children.isEmpty()) {
+                object.put(entry.getKey(), projectMap((Map) entry.getValue(), child, childIncluded));
+            } else if (childIncluded) {
+                object.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return object;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean included;
+        private boolean excluded;
+        private boolean leadsToInclude;
+    }
+}
@@ -0,0 +1,43 @@
+package org.logstash.beats;
+
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.Collections;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of {@link IMessageListener}.
+ * <p>
+ * Instead of signaling back-pressure by blocking the executor thread, the listener receives all the messages of a
+ * batch at once and hands back a single {@link CompletionStage} for them. The {@link BeatsHandler} only writes the ACK
+ * for the batch once this stage completed successfully, so an ACK means the events were durably accepted downstream.
+ * If the stage completes exceptionally the batch is not acknowledged and the connection is closed, letting the beat
+ * resend the window. Up to {@link Server#setMaxPendingBatches(int)} batches of a connection wait for their stage
+ * before the connection stops being read.
+ * </p><p>
+ * The messages are backed by the batch buffer which is kept alive until the stage of the batch is settled, the
+ * listener must not hold a reference to a {@link Message} after completing it.
+ * </p>
+ */
+public interface IAsyncMessageListener extends IMessageListener {
+    /**
+     * This is triggered once per batch parsed by the beats handler, with the messages which are not dropped by the
+     * {@link MessageFilter}. The returned stage completes when all of them have been accepted by the downstream queue.
+     *
+     * @param ctx
+     * @param messages messages of the batch, in sequence order
+     * @return a stage completed once the messages are accepted, or completed exceptionally if they were not
+     */
+    CompletionStage<?> onNewBatch(ChannelHandlerContext ctx, Iterable<Message> messages);
+
+    /**
+     * Blocking fallback, waits for the message to be accepted.
+     *
+     * @param ctx
+     * @param message
+     */
+    @Override
+    default void onNewMessage(ChannelHandlerContext ctx, Message message) {
+        onNewBatch(ctx, Collections.singletonList(message)).toCompletableFuture().join();
+    }
+}
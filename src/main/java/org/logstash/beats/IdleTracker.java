@@ -0,0 +1,69 @@
+package org.logstash.beats;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.logstash.beats.util.DaemonThreadFactory.daemonThreadFactory;
+
+/**
+ * Idle timeouts of all the connections of a server, on a single coarse timing wheel.
+ * <p>
+ * Connections only record the time of their reads and writes, every connection has at most one pending timeout which
+ * checks these times when it expires and is scheduled again for the next deadline. The cost of a read or a write does
+ * not depend on the number of connections, and the wheel thread only hands expired timeouts to the event loops.
+ * Deadlines are rounded up to the next tick of {@link #TICK_MILLIS}.
+ * </p>
+ */
+class IdleTracker {
+
+    static final long TICK_MILLIS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final HashedWheelTimer timer;
+    private final long writerIdleNanos;
+    private final long allIdleNanos;
+
+    /**
+     * @param id id of the server, to name the thread of the wheel
+     * @param writerIdleSeconds time without writes after which a keep alive is sent to clients waiting for an ACK
+     * @param allIdleSeconds time without reads nor writes after which a connection is closed, 0 or less to keep idle
+     *                       connections, as with an {@link io.netty.handler.timeout.IdleStateHandler}
+     */
+    IdleTracker(String id, long writerIdleSeconds, long allIdleSeconds) {
+        if (writerIdleSeconds <= 0) {
+            throw new IllegalArgumentException("Writer idle time must be positive, got " + writerIdleSeconds);
+        }
+        this.timer = new HashedWheelTimer(daemonThreadFactory(id + "-idleTracker"), TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+        this.writerIdleNanos = TimeUnit.SECONDS.toNanos(writerIdleSeconds);
+        this.allIdleNanos = TimeUnit.SECONDS.toNanos(Math.max(0, allIdleSeconds));
+    }
+
+    long getWriterIdleNanos() {
+        return writerIdleNanos;
+    }
+
+    /**
+     * @return the idle time after which connections are closed, 0 when they are kept
+     */
+    long getAllIdleNanos() {
+        return allIdleNanos;
+    }
+
+    Timeout schedule(TimerTask task, long delayNanos) {
+        return timer.newTimeout(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return number of connections waiting for their timeout
+     */
+    long pendingTimeouts() {
+        return timer.pendingTimeouts();
+    }
+
+    void stop() {
+        timer.stop();
+    }
+}
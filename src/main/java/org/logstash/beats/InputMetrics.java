@@ -0,0 +1,110 @@
+package org.logstash.beats;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of a {@link Server}: the connections currently open with their {@link ConnectionMetrics}, the totals over
+ * all the connections since the server started, the ACK latencies, the saturation of the executors and the memory of the allocator.
+ */
+public class InputMetrics {
+
+    private final Set<ConnectionState> connections = ConcurrentHashMap.newKeySet();
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final Map<EventExecutor, ExecutorMetrics> executors = new ConcurrentHashMap<>();
+    // counters of the connections already closed, guarded by this
+    private final ConnectionMetrics closedConnections = new ConnectionMetrics();
+
+    /**
+     * @return the connections currently open
+     */
+    public Collection<ConnectionState> getConnections() {
+        return Collections.unmodifiableCollection(new ArrayList<>(connections));
+    }
+
+    /**
+     * Sums the counters of all the connections, open or closed, since the server started.
+     * @return a snapshot of the counters
+     */
+    public synchronized ConnectionMetrics getTotals() {
+        final ConnectionMetrics totals = new ConnectionMetrics();
+        totals.add(closedConnections);
+        for (ConnectionState connection : connections) {
+            totals.add(connection.getMetrics());
+        }
+        return totals;
+    }
+
+    /**
+     * @return the latencies between the first byte of a window and its ACK, for all the connections
+     */
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * Takes a snapshot of the pooled allocator holding the windows of the connections.
+     * @return the {@link AllocatorMetrics} of the default pooled allocator
+     */
+    public AllocatorMetrics sampleAllocator() {
+        return AllocatorMetrics.sample();
+    }
+
+    /**
+     * @return the executors running the handlers of the connections
+     */
+    public Collection<ExecutorMetrics> getExecutors() {
+        return Collections.unmodifiableCollection(new ArrayList<>(executors.values()));
+    }
+
+    /**
+     * Returns the metrics of an executor registered with {@link #registerExecutors(String, EventExecutorGroup)}.
+     * @param executor {@link EventExecutor} running a handler
+     * @return the {@link ExecutorMetrics}, or null if the executor is not tracked
+     */
+    ExecutorMetrics getExecutorMetrics(EventExecutor executor) {
+        return executors.get(executor);
+    }
+
+    /**
+     * Tracks the executors of a group, named after the group with their index.
+     */
+    void registerExecutors(String groupName, EventExecutorGroup group) {
+        int index = 1;
+        for (EventExecutor executor : group) {
+            executors.put(executor, new ExecutorMetrics(groupName + "-" + index++, executor));
+        }
+    }
+
+    void unregisterExecutors(EventExecutorGroup group) {
+        for (EventExecutor executor : group) {
+            executors.remove(executor);
+        }
+    }
+
+    /**
+     * Measures the time tasks wait in the queue of every tracked executor.
+     */
+    void probeExecutors() {
+        for (ExecutorMetrics executor : executors.values()) {
+            executor.probe();
+        }
+    }
+
+    void register(ConnectionState connection) {
+        connections.add(connection);
+    }
+
+    synchronized void unregister(ConnectionState connection) {
+        if (connections.remove(connection)) {
+            closedConnections.add(connection.getMetrics());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.logstash.beats;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts a small set of fields from a raw Json payload using a streaming parser, without materializing
+ * the whole document. Subtrees that do not lead to one of the requested fields are skipped.
+ * <p>
+ * Fields are referenced with the Logstash field reference syntax, e.g. {@code [@metadata][beat]} or {@code message}
+ * for a top level field. Instances are immutable and can be shared between threads.
+ * </p>
+ */
+public class JsonFieldExtractor {
+
+    private final Node root = new Node();
+    private final List<String> fields;
+
+    public JsonFieldExtractor(Collection<String> fieldReferences) {
+        this.fields = Collections.unmodifiableList(new ArrayList<>(fieldReferences));
+        for (String reference : this.fields) {
+            Node node = root;
+            for (String segment : parseReference(reference)) {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+            node.reference = reference;
+        }
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * Extracts the configured fields from the Json object held by the buffer. The buffer indexes are not modified.
+     * @param json {@link ByteBuf} containing a Json object
+     * @return the values found, keyed by field reference. Fields absent from the document are not present in the map.
+     */
+    public Map<String, Object> extract(ByteBuf json) {
+        final Map<String, Object> found = new HashMap<>();
+        if (fields.isEmpty()) {
+            return found;
+        }
+        try (InputStream input = new ByteBufInputStream(json.duplicate());
+             JsonParser parser = Message.mapper().getFactory().createParser(input)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                extractObject(parser, root, found);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to parse beats payload ", e);
+        }
+        return found;
+    }
+
+    /**
+     * Extracts the configured fields from an already materialized message.
+     * @param data key/value pairs of a message
+     * @return the values found, keyed by field reference
+     */
+    public Map<String, Object> extract(Map data) {
+        final Map<String, Object> found = new HashMap<>();
+        if (data != null) {
+            extractMap(data, root, found);
+        }
+        return found;
+    }
+
+    private void extractObject(JsonParser parser, Node node, Map<String, Object> found) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            final Node child = node.children.get(parser.getCurrentName());
+            token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+            } else if (child.reference != null) {
+                final Object value = readValue(parser, token);
+                found.put(child.reference, value);
+                if (value instanceof Map) {
+                    extractMap((Map) value, child, found);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                extractObject(parser, child, found);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return parser.readValueAs(Object.class);
+        }
+    }
+
+    private void extractMap(Map data, Node node, Map<String, Object> found) {
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            if (!data.containsKey(entry.getKey())) {
+                continue;
+            }
+            final Object value = data.get(entry.getKey());
+            final Node child = entry.getValue();
+            if (child.reference != null) {
+                found.put(child.reference, value);
+            }
+            if (value instanceof Map) {
+                extractMap((Map) value, child, found);
+            }
+        }
+    }
+
+    /**
+     * Splits a field reference in its path segments, {@code [a][b]} gives {@code a, b}, a plain {@code a.b} is a
+     * single top level field named {@code a.b}.
+     */
+    static List<String> parseReference(String reference) {
+        if (reference == null || reference.isEmpty()) {
+            throw new IllegalArgumentException("Field reference cannot be empty");
+        }
+        if (!reference.startsWith("[")) {
+            return Collections.singletonList(reference);
+        }
+        if (!reference.endsWith("]") || reference.length() < 3) {
+            throw new IllegalArgumentException("Invalid field reference: " + reference);
+        }
+        final List<String> segments = Arrays.asList(reference.substring(1, reference.length() - 1).split("\\]\\[", -1));
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.contains("[") || segment.contains("]")) {
+                throw new IllegalArgumentException("Invalid field reference: " + reference);
+            }
+        }
+        return segments;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private String reference;
+    }
+}
@@ -0,0 +1,176 @@
+package org.logstash.beats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of latencies with a bounded relative error, laid out like HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds. The first {@code 2^precisionBits} values have their own bucket, above that
+ * every power of two range is split in {@code 2^(precisionBits - 1)} linear buckets, so the error on a recorded
+ * value is at most {@code 2^(1 - precisionBits)}. Values above one hour are recorded as one hour. Recording is lock
+ * free and can happen from any thread; percentiles read while values are recorded are approximate.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    // 7 bits, i.e. at most 1.6% of error
+    public static final int DEFAULT_PRECISION_BITS = 7;
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final int precisionBits;
+    private final int subBucketCount;
+    private final int subBucketHalfCount;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * @param precisionBits number of significant bits kept for every value, between 2 and 16
+     */
+    public LatencyHistogram(int precisionBits) {
+        if (precisionBits < 2 || precisionBits > 16) {
+            throw new IllegalArgumentException("Precision must be between 2 and 16 bits, got " + precisionBits);
+        }
+        this.precisionBits = precisionBits;
+        this.subBucketCount = 1 << precisionBits;
+        this.subBucketHalfCount = subBucketCount >> 1;
+        this.counts = new AtomicLongArray(indexOf(HIGHEST_TRACKABLE_MICROS) + 1);
+    }
+
+    /**
+     * Records a latency.
+     * @param durationNanos latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long durationNanos) {
+        final long micros = Math.min(Math.max(0, TimeUnit.NANOSECONDS.toMicros(durationNanos)), HIGHEST_TRACKABLE_MICROS);
+        counts.incrementAndGet(indexOf(micros));
+        totalCount.incrementAndGet();
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * @return number of recorded latencies
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return highest recorded latency in microseconds, 0 if nothing was recorded
+     */
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Returns the latency under which the given percentage of the recorded latencies fall.
+     * @param percentile percentile between 0 and 100
+     * @return the highest value equivalent to the percentile bucket in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        final long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Moves the latencies recorded so far to a new histogram and resets this one, so that consecutive calls return
+     * the latencies of consecutive intervals. Latencies recorded concurrently end up in one of the two histograms.
+     * @return a histogram holding the latencies recorded since the previous call
+     */
+    public LatencyHistogram getIntervalHistogram() {
+        final LatencyHistogram interval = new LatencyHistogram(precisionBits);
+        long moved = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = counts.getAndSet(i, 0);
+            if (count > 0) {
+                interval.counts.set(i, count);
+                moved += count;
+            }
+        }
+        totalCount.addAndGet(-moved);
+        interval.totalCount.set(moved);
+        interval.maxMicros.set(moved == 0 ? 0 : maxMicros.getAndSet(0));
+        return interval;
+    }
+
+    /**
+     * Copies the latencies recorded so far without resetting this histogram, for readers that must not take the
+     * latencies away from the owner of {@link #getIntervalHistogram()}.
+     * @return a histogram holding the latencies recorded so far
+     */
+    public LatencyHistogram snapshot() {
+        final LatencyHistogram snapshot = new LatencyHistogram(precisionBits);
+        long copied = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = counts.get(i);
+            snapshot.counts.set(i, count);
+            copied += count;
+        }
+        snapshot.totalCount.set(copied);
+        snapshot.maxMicros.set(maxMicros.get());
+        return snapshot;
+    }
+
+    /**
+     * Returns the latencies recorded between two snapshots. The highest latency of the difference is the highest
+     * value equivalent to its highest bucket, as individual values are not kept.
+     * @param earlier snapshot of the same histogram taken before this one
+     * @return a histogram holding the latencies recorded after the earlier snapshot
+     */
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        if (earlier.precisionBits != precisionBits) {
+            throw new IllegalArgumentException("Precision of the histograms differ: " + earlier.precisionBits + " and " + precisionBits);
+        }
+        final LatencyHistogram difference = new LatencyHistogram(precisionBits);
+        long total = 0;
+        int highest = -1;
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = Math.max(0, counts.get(i) - earlier.counts.get(i));
+            if (count > 0) {
+                difference.counts.set(i, count);
+                total += count;
+                highest = i;
+            }
+        }
+        difference.totalCount.set(total);
+        difference.maxMicros.set(highest < 0 ? 0 : Math.min(highestEquivalentValue(highest), maxMicros.get()));
+        return difference;
+    }
+
+    private int indexOf(long micros) {
+        if (micros < subBucketCount) {
+            return (int) micros;
+        }
+        // number of low bits dropped so that only precisionBits significant bits remain
+        final int shift = 64 - Long.numberOfLeadingZeros(micros) - precisionBits;
+        final int subBucket = (int) (micros >>> shift);
+        return subBucketCount + (shift - 1) * subBucketHalfCount + (subBucket - subBucketHalfCount);
+    }
+
+    private long highestEquivalentValue(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        final int shift = (index - subBucketCount) / subBucketHalfCount + 1;
+        final long subBucket = (index - subBucketCount) % subBucketHalfCount + subBucketHalfCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
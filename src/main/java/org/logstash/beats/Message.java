@@ -1,9 +1,12 @@
 package org.logstash.beats;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,8 +18,17 @@ public class Message implements Comparable<Message> {
     private Map data;
     private Batch batch;
     private ByteBuf buffer;
+    private FieldProjection fieldProjection;
+    private ConnectionState connectionState;
 
-    public final static ObjectMapper MAPPER = new ObjectMapper().registerModule(new AfterburnerModule());
+    /**
+     * Returns the mapper reading and writing the Json events. Afterburner generates bytecode when the mapper is
+     * built, {@link Server#listen()} builds it in the background before the first window is read.
+     * @return the shared {@link ObjectMapper}
+     */
+    public static ObjectMapper mapper() {
+        return MapperHolder.MAPPER;
+    }
 
     /**
      * Create a message using a map of key, value pairs
@@ -49,21 +61,80 @@ public class Message implements Comparable<Message> {
 
     /**
      * Returns a list of key/value pairs representing the contents of the message.
-     * Note that this method is lazy if the Message was created using a {@link ByteBuf}
+     * Note that this method is lazy if the Message was created using a {@link ByteBuf}, the buffer is not referenced
+     * once the message is deserialized.
      * @return {@link Map} Map of key/value pairs
      */
     public Map getData(){
         if (data == null && buffer != null){
-            try (ByteBufInputStream byteBufInputStream = new ByteBufInputStream(buffer)){
-                data = MAPPER.readValue((InputStream)byteBufInputStream, Map.class);
-                buffer = null;
+            try (ByteBufInputStream byteBufInputStream = new ByteBufInputStream(buffer.duplicate())){
+                if (fieldProjection == null) {
+                    data = mapper().readValue((InputStream)byteBufInputStream, Map.class);
+                } else {
+                    try (JsonParser parser = mapper().getFactory().createParser((InputStream)byteBufInputStream)) {
+                        data = fieldProjection.read(parser);
+                    }
+                }
             } catch (IOException e){
                 throw new RuntimeException("Unable to parse beats payload ", e);
             }
+            // the buffer is a slice of the batch, released once the batch is acknowledged
+            buffer = null;
         }
         return data;
     }
 
+    /**
+     * Sets the fields to retain when the message is deserialized. Messages created from a {@link Map} are projected
+     * right away.
+     * @param fieldProjection {@link FieldProjection} to apply, null to retain every field
+     */
+    public void setFieldProjection(FieldProjection fieldProjection) {
+        this.fieldProjection = fieldProjection;
+        if (fieldProjection != null && buffer == null && data != null) {
+            data = fieldProjection.project(data);
+        }
+    }
+
+    /**
+     * Returns the serialized Json object of the message without deserializing it.
+     * When the Message was created using a {@link ByteBuf} the returned buffer is a read-only view sharing the memory
+     * of its {@link Batch}, it is only valid until the batch is released and must not be released by the caller.
+     * @return {@link ByteBuf} containing the Json object
+     */
+    public ByteBuf getRawData() {
+        if (buffer != null) {
+            return buffer.asReadOnly();
+        }
+        try {
+            return Unpooled.wrappedBuffer(mapper().writeValueAsBytes(data));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize beats payload ", e);
+        }
+    }
+
+    /**
+     * Returns a copy of the serialized Json object of the message, see {@link #getRawData()}. This is the only copy
+     * made for the raw payload, the caller may wrap the array instead of copying it again.
+     * @return the Json object as UTF-8 bytes
+     */
+    public byte[] getRawBytes() {
+        return ByteBufUtil.getBytes(getRawData());
+    }
+
+    /**
+     * Extracts a small set of fields from the message. When the message has not been deserialized yet, the fields
+     * are read from the raw Json without materializing the rest of the object.
+     * @param extractor {@link JsonFieldExtractor} holding the fields to extract
+     * @return the values found, keyed by field reference
+     */
+    public Map<String, Object> extractFields(JsonFieldExtractor extractor) {
+        if (data == null && buffer != null) {
+            return extractor.extract(buffer);
+        }
+        return extractor.extract(data);
+    }
+
     @Override
     public int compareTo(Message o) {
         return Integer.compare(getSequence(), o.getSequence());
@@ -78,6 +149,18 @@ public class Message implements Comparable<Message> {
     }
 
 
+    /**
+     * Returns the state of the connection the message was received on.
+     * @return {@link ConnectionState} or null if the message was not received through a channel
+     */
+    public ConnectionState getConnectionState() {
+        return connectionState;
+    }
+
+    public void setConnectionState(ConnectionState connectionState) {
+        this.connectionState = connectionState;
+    }
+
     public String getIdentityStream() {
         if (identityStream == null){
             identityStream = extractIdentityStream();
@@ -86,6 +169,8 @@ public class Message implements Comparable<Message> {
     }
 
     private String extractIdentityStream() {
+        // read for every message: the resource id and the source change between the events of a connection, only
+        // the resulting string is shared through the connection state
         Map beatsData = (Map<String, String>)this.getData().get("beat");
 
         if(beatsData != null) {
@@ -93,12 +178,23 @@ public class Message implements Comparable<Message> {
             String resourceId = (String) beatsData.get("resource_id");
 
             if(id != null && resourceId != null) {
-                return id + "-" + resourceId;
+                return identityStream(id, resourceId);
             } else {
-                return beatsData.get("name") + "-" + beatsData.get("source");
+                return identityStream(beatsData.get("name"), beatsData.get("source"));
             }
         }
 
         return null;
     }
-}
\ No newline at end of file
+
+    private String identityStream(Object first, Object second) {
+        if (connectionState != null) {
+            return connectionState.identityStream(first, second);
+        }
+        return first + "-" + second;
+    }
+
+    private static final class MapperHolder {
+        private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new AfterburnerModule());
+    }
+}
@@ -0,0 +1,59 @@
+package org.logstash.beats;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops messages before they are deserialized, by exact match of field values read from the raw Json payload.
+ * <p>
+ * A message is dropped when any of the configured fields holds one of the values given for it. Values are compared
+ * with their textual representation, so {@code 404} matches a numeric field and {@code true} a boolean one. Dropped
+ * messages are still part of their batch and acknowledged with it.
+ * </p>
+ */
+public class MessageFilter {
+
+    private final Map<String, Set<String>> dropWhen = new HashMap<>();
+    private final JsonFieldExtractor extractor;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param dropWhen field references mapped to the values for which a message is dropped
+     */
+    public MessageFilter(Map<String, ? extends Collection<String>> dropWhen) {
+        for (Map.Entry<String, ? extends Collection<String>> entry : dropWhen.entrySet()) {
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                throw new IllegalArgumentException("No value to match for field " + entry.getKey());
+            }
+            this.dropWhen.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        this.extractor = new JsonFieldExtractor(this.dropWhen.keySet());
+    }
+
+    /**
+     * Evaluates the message against the drop conditions, without deserializing it.
+     * @param message {@link Message} to evaluate
+     * @return true if the message must not be handed to the listener
+     */
+    public boolean shouldDrop(Message message) {
+        final Map<String, Object> fields = message.extractFields(extractor);
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (field.getValue() != null && dropWhen.get(field.getKey()).contains(field.getValue().toString())) {
+                dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of messages dropped since the filter was created
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
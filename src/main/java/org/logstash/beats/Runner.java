@@ -1,11 +1,44 @@
 package org.logstash.beats;
 
+import io.netty.channel.ChannelHandlerContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.logstash.beats.util.DaemonThreadFactory;
 import org.logstash.netty.SslContextBuilder;
 import org.logstash.netty.SslHandlerProvider;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Starts a server receiving events from beats, to test and benchmark the input without Logstash.
+ * <p>
+ * The {@code sink} option selects what is done with the received messages, to isolate the cost of the network, TLS,
+ * decoding and dispatching from the cost of the Logstash pipeline:
+ * </p>
+ * <ul>
+ *     <li>{@code log}: the default {@link MessageListener}, which only logs at debug level</li>
+ *     <li>{@code discard}: messages are dropped without being deserialized</li>
+ *     <li>{@code count}: messages are counted without being deserialized</li>
+ *     <li>{@code getData}: messages are deserialized, as the plugin does before creating events</li>
+ *     <li>{@code queue}: deserialized messages are put in a blocking queue of {@code queueCapacity} events, consumed by
+ *     a thread spending {@code eventLatencyMicros} per event, to simulate a pipeline applying back-pressure</li>
+ * </ul>
+ * <p>
+ * The throughput and the ACK latency are printed every {@code reportSeconds}. Options are given as
+ * {@code --name=value}, a first {@code ssl} argument enables TLS with the certificates of the developer machine:
+ * </p>
+ * <pre>
+ * gradle run -Pprovidedargs=--sink=queue,--eventLatencyMicros=5,--queueCapacity=1024
+ * </pre>
+ */
 public class Runner {
     private static final int DEFAULT_PORT = 5044;
 
@@ -14,12 +47,21 @@ public class Runner {
     static public void main(String[] args) throws Exception {
         logger.info("Starting Beats Bulk");
 
+        final boolean ssl = args.length > 0 && args[0].equals("ssl");
+        final CommandLineOptions options = CommandLineOptions.parse(args, ssl ? 1 : 0);
+        final int port = Integer.parseInt(options.get("port", String.valueOf(DEFAULT_PORT)));
+        final int executorThreads = Integer.parseInt(options.get("executorThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        final int reportSeconds = Integer.parseInt(options.get("reportSeconds", "5"));
+        final IMessageListener sink = sink(options.get("sink", "log"), options);
+        options.checkAllRead();
+
         // Check for leaks.
         // ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
 
-        Server server = new Server("test", "0.0.0.0", DEFAULT_PORT, 15, 0, Runtime.getRuntime().availableProcessors());
+        Server server = new Server("test", "0.0.0.0", port, 15, 0, executorThreads);
+        server.setMessageListener(sink);
 
-            if(args.length > 0 && args[0].equals("ssl")) {
+        if (ssl) {
             logger.debug("Using SSL");
 
             String sslCertificate = "/Users/ph/es/certificates/certificate.crt";
@@ -36,6 +78,137 @@ public class Runner {
             server.setSslHandlerProvider(sslHandlerProvider);
         }
 
-        server.listen();
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(DaemonThreadFactory.daemonThreadFactory("runner-report"));
+        final CountingSink counter = sink instanceof CountingSink ? (CountingSink) sink : null;
+        reporter.scheduleAtFixedRate(new ThroughputReport(server.getMetrics(), counter, reportSeconds), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        try {
+            server.listen();
+        } finally {
+            reporter.shutdownNow();
+        }
+    }
+
+    private static IMessageListener sink(String name, CommandLineOptions options) {
+        switch (name) {
+            case "log":
+                return new MessageListener();
+            case "discard":
+                return new MessageListener() {
+                    @Override
+                    public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+                    }
+                };
+            case "count":
+                return new CountingSink(false);
+            case "getData":
+                return new CountingSink(true);
+            case "queue":
+                final int capacity = Integer.parseInt(options.get("queueCapacity", "1024"));
+                final long eventLatencyNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(options.get("eventLatencyMicros", "0")));
+                return new QueueSink(capacity, eventLatencyNanos);
+            default:
+                throw new IllegalArgumentException("Unknown sink " + name + ", expected one of log, discard, count, getData or queue");
+        }
+    }
+
+    private static class CountingSink extends MessageListener {
+        private final boolean deserialize;
+        final LongAdder messages = new LongAdder();
+
+        CountingSink(boolean deserialize) {
+            this.deserialize = deserialize;
+        }
+
+        @Override
+        public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+            if (deserialize) {
+                message.getData();
+            }
+            messages.increment();
+        }
+    }
+
+    /*
+     * Blocks the executor threads when the queue is full, like the Logstash queue does. The consumer pays the
+     * latency of the events it takes by batches of at least a millisecond, parking for each event is not precise.
+     */
+    private static class QueueSink extends CountingSink {
+        private static final long MIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final BlockingQueue<Map> queue;
+
+        QueueSink(int capacity, long eventLatencyNanos) {
+            super(true);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            final Thread consumer = new Thread(() -> {
+                long debt = 0;
+                try {
+                    while (true) {
+                        queue.take();
+                        debt += eventLatencyNanos;
+                        if (debt >= MIN_PARK_NANOS) {
+                            final long start = System.nanoTime();
+                            LockSupport.parkNanos(debt);
+                            debt -= System.nanoTime() - start;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "runner-queue-consumer");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        @Override
+        public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+            try {
+                queue.put(message.getData());
+                messages.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /*
+     * Events decoded by the server, and events handed to the sink when it counts them, which excludes the events
+     * still waiting for an executor thread.
+     */
+    private static class ThroughputReport implements Runnable {
+        private final InputMetrics metrics;
+        private final CountingSink sink;
+        private final int intervalSeconds;
+        private long lastEvents;
+        private long lastBytes;
+        private long lastDelivered;
+        // the interval histogram of the server belongs to the metrics of the plugin, snapshots leave it untouched
+        private LatencyHistogram lastLatency = new LatencyHistogram();
+
+        ThroughputReport(InputMetrics metrics, CountingSink sink, int intervalSeconds) {
+            this.metrics = metrics;
+            this.sink = sink;
+            this.intervalSeconds = intervalSeconds;
+        }
+
+        @Override
+        public void run() {
+            final ConnectionMetrics totals = metrics.getTotals();
+            final LatencyHistogram snapshot = metrics.getAckLatency().snapshot();
+            final LatencyHistogram latency = snapshot.since(lastLatency);
+            final long events = totals.getEvents();
+            final long bytes = totals.getBytesRead();
+            final long delivered = sink == null ? 0 : sink.messages.sum();
+            logger.info(String.format(Locale.ROOT, "%d connections, %.0f events/s decoded, %s%.1f MB/s, ack latency ms: p50 %.2f, p99 %.2f, max %.2f (%d windows)",
+                    metrics.getConnections().size(), (events - lastEvents) / (double) intervalSeconds,
+                    sink == null ? "" : String.format(Locale.ROOT, "%.0f events/s delivered, ", (delivered - lastDelivered) / (double) intervalSeconds),
+                    (bytes - lastBytes) / (double) intervalSeconds / (1024 * 1024), latency.getPercentileMicros(50) / 1e3,
+                    latency.getPercentileMicros(99) / 1e3, latency.getMaxMicros() / 1e3, latency.getCount()));
+            lastEvents = events;
+            lastLatency = snapshot;
+            lastBytes = bytes;
+            lastDelivered = delivered;
+        }
     }
 }
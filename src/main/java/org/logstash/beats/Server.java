@@ -9,7 +9,6 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
@@ -18,10 +17,17 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.logstash.netty.SslHandlerProvider;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.logstash.beats.util.DaemonThreadFactory.daemonThreadFactory;
 
 public class Server {
     private final static Logger logger = LogManager.getLogger(Server.class);
+    private final static long EXECUTOR_PROBE_INTERVAL_MILLIS = 1000;
+    private final static AtomicBoolean WARMED_UP = new AtomicBoolean();
 
     private final int port;
 
@@ -33,7 +39,13 @@ public class Server {
     private NioEventLoopGroup workGroup;
     private IMessageListener messageListener = new MessageListener();
     private SslHandlerProvider sslHandlerProvider;
+    private FieldProjection fieldProjection;
+    private MessageFilter messageFilter;
+    private Path captureDirectory;
+    private boolean executorMetricsEnabled = true;
+    private int maxPendingBatches = BeatsHandler.DEFAULT_MAX_PENDING_BATCHES;
     private BeatsInitializer beatsInitializer;
+    private final InputMetrics metrics = new InputMetrics();
 
     private final int clientInactivityTimeoutSeconds;
 
@@ -50,6 +62,73 @@ public class Server {
         this.sslHandlerProvider = sslHandlerProvider;
     }
 
+    /**
+     * Sets the include and exclude lists of fields applied when messages are deserialized.
+     * @param fieldProjection {@link FieldProjection} to apply, null to retain every field
+     */
+    public void setFieldProjection(FieldProjection fieldProjection) {
+        this.fieldProjection = fieldProjection;
+    }
+
+    /**
+     * Sets the conditions under which messages are dropped before being deserialized.
+     * @param messageFilter {@link MessageFilter} to apply, null to hand every message to the listener
+     */
+    public void setMessageFilter(MessageFilter messageFilter) {
+        this.messageFilter = messageFilter;
+    }
+
+    /**
+     * Records the bytes received on every connection to a capture file, to replay production traffic in benchmarks.
+     * Captures hold the decrypted protocol and all the events, they are meant to be enabled for a limited time.
+     * @param captureDirectory existing directory where capture files are created, null to disable captures
+     * @see CaptureHandler
+     */
+    public void setCaptureDirectory(String captureDirectory) {
+        this.captureDirectory = captureDirectory == null ? null : Paths.get(captureDirectory);
+    }
+
+    /**
+     * Enables the saturation gauges of the executors running the handlers, which time every call to the message
+     * listener and submit a probe task to every executor each second.
+     * @param executorMetricsEnabled false to leave the executors uninstrumented
+     * @see ExecutorMetrics
+     */
+    public void setExecutorMetricsEnabled(boolean executorMetricsEnabled) {
+        this.executorMetricsEnabled = executorMetricsEnabled;
+    }
+
+    /**
+     * Sets the number of batches of a connection which may wait for an {@link IAsyncMessageListener} to accept them,
+     * once it is reached the connection is no longer read until a batch is acknowledged. Blocking listeners handle
+     * one batch at a time.
+     * @param maxPendingBatches maximum number of batches waiting for the listener, per connection
+     */
+    public void setMaxPendingBatches(int maxPendingBatches) {
+        if (maxPendingBatches <= 0) {
+            throw new IllegalArgumentException("Maximum pending batches must be positive, got " + maxPendingBatches);
+        }
+        this.maxPendingBatches = maxPendingBatches;
+    }
+
+    /**
+     * Returns the metrics of the server and of its open connections, counters of a single connection are also
+     * available from its {@link ConnectionState}.
+     * @return the {@link InputMetrics} of the server
+     */
+    public InputMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the latencies between the first byte of a window and its ACK, for all the connections of the server.
+     * Latencies of a single connection are available from its {@link ConnectionState}.
+     * @return the {@link LatencyHistogram} of the server
+     */
+    public LatencyHistogram getAckLatency() {
+        return metrics.getAckLatency();
+    }
+
     public Server listen() throws InterruptedException {
         if (workGroup != null) {
             try {
@@ -59,12 +138,20 @@ public class Server {
                 logger.error("Could not shut down worker group before starting", e);
             }
         }
+        warmUp();
         bossGroup = new NioEventLoopGroup(eventLoopThreadCount, daemonThreadFactory(id + "-bossGroup")); // TODO: add a config to make it adjustable, no need many threads
         workGroup = new NioEventLoopGroup(eventLoopThreadCount, daemonThreadFactory(id + "-workGroup"));
         try {
             logger.info("Starting server on port: {}", this.port);
 
-            beatsInitializer = new BeatsInitializer(id, messageListener, clientInactivityTimeoutSeconds, executorThreadCount);
+            if (isSslEnabled()) {
+                sslHandlerProvider.start(id);
+            }
+            beatsInitializer = new BeatsInitializer(id, messageListener, fieldProjection, messageFilter, captureDirectory, executorMetricsEnabled, maxPendingBatches, metrics, clientInactivityTimeoutSeconds, executorThreadCount);
+            if (executorMetricsEnabled) {
+                // samples the time tasks wait in the executors, stops with the boss group
+                bossGroup.scheduleAtFixedRate(metrics::probeExecutors, EXECUTOR_PROBE_INTERVAL_MILLIS, EXECUTOR_PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
 
             ServerBootstrap server = new ServerBootstrap();
             server.group(bossGroup, workGroup)
@@ -85,6 +172,16 @@ public class Server {
         return this;
     }
 
+    /*
+     * Builds the Json mapper in the background while the port is bound, instead of when the first window is decoded.
+     * It is built once per JVM, restarted servers find it ready.
+     */
+    private void warmUp() {
+        if (WARMED_UP.compareAndSet(false, true)) {
+            daemonThreadFactory(id + "-warmUp").newThread(Message::mapper).start();
+        }
+    }
+
     public void stop() {
         logger.debug("Server shutting down");
         shutdown();
@@ -112,6 +209,10 @@ public class Server {
             if (beatsInitializer != null) {
                 beatsInitializer.shutdownEventExecutor();
             }
+
+            if (sslHandlerProvider != null) {
+                sslHandlerProvider.stop();
+            }
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
@@ -135,27 +236,37 @@ public class Server {
 
     private class BeatsInitializer extends ChannelInitializer<SocketChannel> {
         private final static String SSL_HANDLER = "ssl-handler";
-        private final static String IDLESTATE_HANDLER = "idlestate-handler";
+        private final static String CAPTURE_HANDLER = "capture-handler";
         private final static String CONNECTION_HANDLER = "connection-handler";
         private final static String BEATS_ACKER = "beats-acker";
 
 
-        private final static int DEFAULT_IDLESTATEHANDLER_THREAD = 4;
         private final static int IDLESTATE_WRITER_IDLE_TIME_SECONDS = 5;
 
-        private final EventExecutorGroup idleExecutorGroup;
+        private final IdleTracker idleTracker;
+        private final AckEncoder ackEncoder = new AckEncoder();
         private final EventExecutorGroup beatsHandlerExecutorGroup;
         private final IMessageListener localMessageListener;
-        private final int localClientInactivityTimeoutSeconds;
+        private final FieldProjection localFieldProjection;
+        private final MessageFilter localMessageFilter;
+        private final CaptureWriter captureWriter;
+        private final int localMaxPendingBatches;
+        private final InputMetrics localMetrics;
 
-        BeatsInitializer(String pluginId, IMessageListener messageListener, int clientInactivityTimeoutSeconds, int beatsHandlerThreadCount) {
+        BeatsInitializer(String pluginId, IMessageListener messageListener, FieldProjection fieldProjection, MessageFilter messageFilter, Path captureDirectory, boolean executorMetricsEnabled, int maxPendingBatches, InputMetrics metrics, int clientInactivityTimeoutSeconds, int beatsHandlerThreadCount) {
             // Keeps a local copy of Server settings, so they can't be modified once it starts listening
             this.localMessageListener = messageListener;
-            this.localClientInactivityTimeoutSeconds = clientInactivityTimeoutSeconds;
-            idleExecutorGroup = new DefaultEventExecutorGroup(DEFAULT_IDLESTATEHANDLER_THREAD,
-                    daemonThreadFactory(pluginId + "-idleStateHandler"));
+            this.localFieldProjection = fieldProjection;
+            this.localMessageFilter = messageFilter;
+            this.captureWriter = captureDirectory == null ? null : new CaptureWriter(pluginId, captureDirectory);
+            this.localMaxPendingBatches = maxPendingBatches;
+            this.localMetrics = metrics;
+            idleTracker = new IdleTracker(pluginId, IDLESTATE_WRITER_IDLE_TIME_SECONDS, clientInactivityTimeoutSeconds);
             beatsHandlerExecutorGroup = new DefaultEventExecutorGroup(beatsHandlerThreadCount,
                     daemonThreadFactory(pluginId + "-beatsHandler"));
+            if (executorMetricsEnabled) {
+                localMetrics.registerExecutors("beatsHandler", beatsHandlerExecutorGroup);
+            }
         }
 
         public void initChannel(SocketChannel socket) {
@@ -164,11 +275,12 @@ public class Server {
             if (isSslEnabled()) {
                 pipeline.addLast(SSL_HANDLER, sslHandlerProvider.sslHandlerForChannel(socket));
             }
-            pipeline.addLast(idleExecutorGroup, IDLESTATE_HANDLER,
-                    new IdleStateHandler(localClientInactivityTimeoutSeconds, IDLESTATE_WRITER_IDLE_TIME_SECONDS, localClientInactivityTimeoutSeconds));
-            pipeline.addLast(BEATS_ACKER, new AckEncoder());
-            pipeline.addLast(CONNECTION_HANDLER, new ConnectionHandler());
-            pipeline.addLast(beatsHandlerExecutorGroup, new BeatsParser(), new BeatsHandler(localMessageListener));
+            if (captureWriter != null) {
+                pipeline.addLast(CAPTURE_HANDLER, new CaptureHandler(captureWriter));
+            }
+            pipeline.addLast(BEATS_ACKER, ackEncoder);
+            pipeline.addLast(CONNECTION_HANDLER, new ConnectionHandler(idleTracker));
+            pipeline.addLast(beatsHandlerExecutorGroup, new BeatsParser(), new BeatsHandler(localMessageListener, localFieldProjection, localMessageFilter, localMetrics, localMaxPendingBatches));
         }
 
         @Override
@@ -183,12 +295,18 @@ public class Server {
 
         public void shutdownEventExecutor() {
             try {
-                idleExecutorGroup.shutdownGracefully().sync();
+                idleTracker.stop();
+                if (captureWriter != null) {
+                    // the event loops are stopped, the connections queued the close of their captures
+                    captureWriter.stop();
+                }
 
                 shutdownEventExecutorsWithPendingTasks();
 
                 // make sure non-pending tasked executors get terminated
                 beatsHandlerExecutorGroup.shutdownGracefully().sync();
+
+                localMetrics.unregisterExecutors(beatsHandlerExecutorGroup);
             } catch (InterruptedException e) {
                 throw new IllegalStateException(e);
             }
@@ -0,0 +1,62 @@
+package org.logstash.beats;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Immutable snapshot of the TLS parameters of a connection and of the certificate presented by the client, taken
+ * once the handshake completed and shared by all the messages of the connection.
+ */
+public final class TlsPeer {
+
+    private final boolean verified;
+    private final String protocol;
+    private final String cipherSuite;
+    private final String subject;
+
+    private TlsPeer(boolean verified, String protocol, String cipherSuite, String subject) {
+        this.verified = verified;
+        this.protocol = protocol;
+        this.cipherSuite = cipherSuite;
+        this.subject = subject;
+    }
+
+    /**
+     * Reads the peer of a session, the session is not kept.
+     * @param session {@link SSLSession} of a completed handshake
+     * @return the {@link TlsPeer} of the session
+     */
+    public static TlsPeer of(SSLSession session) {
+        String subject;
+        try {
+            // throws when the client did not present a certificate, which is allowed by optional client authentication
+            session.getPeerCertificates();
+            subject = session.getPeerPrincipal().getName();
+        } catch (SSLPeerUnverifiedException e) {
+            subject = null;
+        }
+        return new TlsPeer(subject != null, session.getProtocol(), session.getCipherSuite(), subject);
+    }
+
+    /**
+     * @return true when the client presented a certificate trusted by the server
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * @return the distinguished name of the client certificate, null when the peer is not verified
+     */
+    public String getSubject() {
+        return subject;
+    }
+}
@@ -13,6 +13,7 @@ public class V1Batch implements Batch {
     private List<Message> messages = new ArrayList<>();
     private byte protocol = Protocol.VERSION_1;
     private int highestSequence = -1;
+    private long receivedNanos;
 
     @Override
     public byte getProtocol() {
@@ -66,6 +67,16 @@ public class V1Batch implements Batch {
         return highestSequence;
     }
 
+    @Override
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    @Override
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
     @Override
     public boolean isComplete() {
         return size() == getBatchSize();
@@ -25,6 +25,7 @@ public class V2Batch implements Batch {
     private static final int SIZE_OF_INT = 4;
     private int batchSize;
     private int highestSequence = -1;
+    private long receivedNanos;
 
     public void setProtocol(byte protocol) {
         if (protocol != Protocol.VERSION_2) {
@@ -88,6 +89,16 @@ public class V2Batch implements Batch {
         return highestSequence;
     }
 
+    @Override
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    @Override
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
     /**
      * Adds a message to the batch, which will be constructed into an actual {@link Message} lazily.
      * @param sequenceNumber sequence number of the message within the batch
@@ -0,0 +1,28 @@
+package org.logstash.beats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.logstash.beats.AckWritten")
+@Label("ACK Written")
+@Description("The final ACK of a window was written")
+@Category({"Logstash", "Beats Input"})
+@StackTrace(false)
+class AckWrittenEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    @Description("Short identifier of the channel")
+    String connection;
+
+    @Label("Sequence")
+    int sequence;
+
+    @Label("Window Latency")
+    @Description("Time elapsed since the first byte of the window was read")
+    @Timespan
+    long windowLatency;
+}
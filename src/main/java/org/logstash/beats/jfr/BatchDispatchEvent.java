@@ -0,0 +1,31 @@
+package org.logstash.beats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.logstash.beats.BatchDispatch")
+@Label("Batch Dispatch")
+@Description("The messages of a window were handed to the message listener")
+@Category({"Logstash", "Beats Input"})
+@StackTrace(false)
+class BatchDispatchEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    @Description("Short identifier of the channel")
+    String connection;
+
+    @Label("Duration")
+    @Timespan
+    long dispatchDuration;
+
+    @Label("Events")
+    int events;
+
+    @Label("Asynchronous")
+    @Description("The listener accepts messages asynchronously, the duration does not include the ACK")
+    boolean asynchronous;
+}
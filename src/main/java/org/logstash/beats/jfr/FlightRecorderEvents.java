@@ -0,0 +1,133 @@
+package org.logstash.beats.jfr;
+
+import io.netty.channel.Channel;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+/**
+ * Emits the Java Flight Recorder events of the beats input.
+ * <p>
+ * Every event type has an {@code isXxxEnabled()} check, callers must only measure durations and build the event
+ * fields when it returns {@code true}. Outside of a recording the check is a field read, so the events cost nothing
+ * on the hot path. On JVMs without the {@code jdk.jfr} module the event classes are never loaded and every check
+ * returns {@code false}.
+ * </p>
+ */
+public final class FlightRecorderEvents {
+
+    private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * @return {@code true} when the running JVM provides the flight recorder API
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static boolean isFrameDecodedEnabled() {
+        return AVAILABLE && Types.FRAME_DECODED.isEnabled();
+    }
+
+    public static void frameDecoded(Channel channel, char frameType, long size) {
+        final FrameDecodedEvent event = new FrameDecodedEvent();
+        event.connection = connection(channel);
+        event.frameType = frameType;
+        event.size = size;
+        event.commit();
+    }
+
+    public static boolean isInflateEnabled() {
+        return AVAILABLE && Types.INFLATE.isEnabled();
+    }
+
+    public static void inflate(Channel channel, long durationNanos, long compressedSize, long inflatedSize) {
+        final InflateEvent event = new InflateEvent();
+        event.connection = connection(channel);
+        event.inflateDuration = durationNanos;
+        event.compressedSize = compressedSize;
+        event.inflatedSize = inflatedSize;
+        event.ratio = compressedSize == 0 ? 0 : (double) inflatedSize / compressedSize;
+        event.commit();
+    }
+
+    public static boolean isBatchDispatchEnabled() {
+        return AVAILABLE && Types.BATCH_DISPATCH.isEnabled();
+    }
+
+    public static void batchDispatch(Channel channel, long durationNanos, int events, boolean asynchronous) {
+        final BatchDispatchEvent event = new BatchDispatchEvent();
+        event.connection = connection(channel);
+        event.dispatchDuration = durationNanos;
+        event.events = events;
+        event.asynchronous = asynchronous;
+        event.commit();
+    }
+
+    public static boolean isAckWrittenEnabled() {
+        return AVAILABLE && Types.ACK_WRITTEN.isEnabled();
+    }
+
+    /**
+     * @param windowLatencyNanos time since the first byte of the window was read, negative when unknown
+     */
+    public static void ackWritten(Channel channel, int sequence, long windowLatencyNanos) {
+        final AckWrittenEvent event = new AckWrittenEvent();
+        event.connection = connection(channel);
+        event.sequence = sequence;
+        event.windowLatency = windowLatencyNanos < 0 ? Long.MIN_VALUE : windowLatencyNanos;
+        event.commit();
+    }
+
+    public static boolean isKeepAliveSentEnabled() {
+        return AVAILABLE && Types.KEEP_ALIVE_SENT.isEnabled();
+    }
+
+    public static void keepAliveSent(Channel channel) {
+        final KeepAliveSentEvent event = new KeepAliveSentEvent();
+        event.connection = connection(channel);
+        event.commit();
+    }
+
+    public static boolean isIdleCloseEnabled() {
+        return AVAILABLE && Types.IDLE_CLOSE.isEnabled();
+    }
+
+    public static void idleClose(Channel channel) {
+        final IdleCloseEvent event = new IdleCloseEvent();
+        event.connection = connection(channel);
+        event.commit();
+    }
+
+    private static String connection(Channel channel) {
+        return channel.id().asShortText();
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /*
+     * Only initialized once the flight recorder is known to be available, EventType#isEnabled is a volatile read
+     * that turns true while a recording has the event enabled.
+     */
+    private static final class Types {
+        static final EventType FRAME_DECODED = type(FrameDecodedEvent.class);
+        static final EventType INFLATE = type(InflateEvent.class);
+        static final EventType BATCH_DISPATCH = type(BatchDispatchEvent.class);
+        static final EventType ACK_WRITTEN = type(AckWrittenEvent.class);
+        static final EventType KEEP_ALIVE_SENT = type(KeepAliveSentEvent.class);
+        static final EventType IDLE_CLOSE = type(IdleCloseEvent.class);
+
+        private static EventType type(Class<? extends Event> eventClass) {
+            return EventType.getEventType(eventClass);
+        }
+    }
+}
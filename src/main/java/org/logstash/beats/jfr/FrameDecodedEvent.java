@@ -0,0 +1,30 @@
+package org.logstash.beats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.logstash.beats.FrameDecoded")
+@Label("Frame Decoded")
+@Description("A frame of the lumberjack protocol was decoded")
+@Category({"Logstash", "Beats Input"})
+@StackTrace(false)
+// one event per frame, only recorded when enabled explicitly in the recording settings
+@Enabled(false)
+class FrameDecodedEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    @Description("Short identifier of the channel")
+    String connection;
+
+    @Label("Frame Type")
+    char frameType;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+}
@@ -0,0 +1,19 @@
+package org.logstash.beats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.logstash.beats.IdleClose")
+@Label("Idle Close")
+@Description("A connection idle for longer than the client inactivity timeout was closed")
+@Category({"Logstash", "Beats Input"})
+@StackTrace(false)
+class IdleCloseEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    @Description("Short identifier of the channel")
+    String connection;
+}
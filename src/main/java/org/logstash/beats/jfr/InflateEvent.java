@@ -0,0 +1,37 @@
+package org.logstash.beats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("org.logstash.beats.Inflate")
+@Label("Inflate")
+@Description("A compressed frame was inflated")
+@Category({"Logstash", "Beats Input"})
+@StackTrace(false)
+class InflateEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    @Description("Short identifier of the channel")
+    String connection;
+
+    @Label("Duration")
+    @Timespan
+    long inflateDuration;
+
+    @Label("Compressed Size")
+    @DataAmount
+    long compressedSize;
+
+    @Label("Inflated Size")
+    @DataAmount
+    long inflatedSize;
+
+    @Label("Ratio")
+    @Description("Inflated size divided by the compressed size")
+    double ratio;
+}
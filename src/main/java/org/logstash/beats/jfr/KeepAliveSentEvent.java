@@ -0,0 +1,19 @@
+package org.logstash.beats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.logstash.beats.KeepAliveSent")
+@Label("Keep Alive Sent")
+@Description("A keep alive ACK was sent while windows were being processed")
+@Category({"Logstash", "Beats Input"})
+@StackTrace(false)
+class KeepAliveSentEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    @Description("Short identifier of the channel")
+    String connection;
+}
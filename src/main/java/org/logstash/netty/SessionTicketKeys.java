@@ -0,0 +1,59 @@
+package org.logstash.netty;
+
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates the keys encrypting the session tickets of an OpenSSL context. New tickets are encrypted with the newest
+ * key, tickets encrypted with the previous key are still accepted, so a ticket stays valid for one to two rotation
+ * intervals. Keys only live in memory, tickets cannot be decrypted by another process.
+ */
+class SessionTicketKeys {
+    private static final Logger logger = LogManager.getLogger(SessionTicketKeys.class);
+
+    private final OpenSslSessionContext sessionContext;
+    private final long rotationNanos;
+    private final SecureRandom random = new SecureRandom();
+    private OpenSslSessionTicketKey current;
+    private long rotatedAt;
+
+    SessionTicketKeys(OpenSslSessionContext sessionContext, long rotationSeconds) {
+        this.sessionContext = sessionContext;
+        this.rotationNanos = TimeUnit.SECONDS.toNanos(rotationSeconds);
+        rotate(System.nanoTime());
+    }
+
+    /**
+     * Rotates the keys when the rotation interval elapsed, called for every new connection.
+     */
+    synchronized void rotateIfNeeded() {
+        final long now = System.nanoTime();
+        if (now - rotatedAt >= rotationNanos) {
+            rotate(now);
+        }
+    }
+
+    private void rotate(long now) {
+        final OpenSslSessionTicketKey next = new OpenSslSessionTicketKey(randomBytes(OpenSslSessionTicketKey.NAME_SIZE),
+                randomBytes(OpenSslSessionTicketKey.HMAC_KEY_SIZE), randomBytes(OpenSslSessionTicketKey.AES_KEY_SIZE));
+        if (current == null) {
+            sessionContext.setTicketKeys(next);
+        } else {
+            sessionContext.setTicketKeys(next, current);
+        }
+        current = next;
+        rotatedAt = now;
+        logger.debug("Rotated the session ticket keys");
+    }
+
+    private byte[] randomBytes(int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -1,7 +1,10 @@
 package org.logstash.netty;
 
 import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslContextOption;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslProvider;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -16,9 +19,12 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -48,18 +54,36 @@ public class SslContextBuilder {
     private final File sslKeyFile;
     private final File sslCertificateFile;
     private SslClientVerifyMode verifyMode = SslClientVerifyMode.NONE;
+    private SslProvider sslProvider = SslProvider.JDK;
+    private Long sessionCacheSize;
+    private Long sessionTimeoutSeconds;
 
-    public static final Set<String> SUPPORTED_CIPHERS = new HashSet<>(Arrays.asList(
-            ((SSLServerSocketFactory) SSLServerSocketFactory.getDefault()).getSupportedCipherSuites()
-    ));
+    /**
+     * @deprecated use {@link #getSupportedJdkCiphers()}, this view looks the ciphers up on first use
+     */
+    @Deprecated
+    public static final Set<String> SUPPORTED_CIPHERS = new AbstractSet<String>() {
+        @Override
+        public Iterator<String> iterator() {
+            return getSupportedJdkCiphers().iterator();
+        }
+
+        @Override
+        public int size() {
+            return getSupportedJdkCiphers().size();
+        }
+
+        @Override
+        public boolean contains(Object cipher) {
+            return getSupportedJdkCiphers().contains(cipher);
+        }
+    };
 
     /*
     Modern Ciphers List from
     https://wiki.mozilla.org/Security/Server_Side_TLS
     */
-    private static final String[] DEFAULT_CIPHERS;
-    static {
-        String[] defaultCipherCandidates = new String[] {
+    private static final String[] DEFAULT_CIPHER_CANDIDATES = new String[] {
             // Modern compatibility
             "TLS_AES_256_GCM_SHA384", // TLS 1.3
             "TLS_AES_128_GCM_SHA256", // TLS 1.3
@@ -76,9 +100,7 @@ public class SslContextBuilder {
             "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384",
             "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
             "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256"
-        };
-        DEFAULT_CIPHERS = Arrays.stream(defaultCipherCandidates).filter(SUPPORTED_CIPHERS::contains).toArray(String[]::new);
-    }
+    };
 
     /*
       Reduced set of ciphers available when JCE Unlimited Strength Jurisdiction Policy is not installed.
@@ -90,7 +112,8 @@ public class SslContextBuilder {
             "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256"
     };
 
-    private String[] ciphers = DEFAULT_CIPHERS;
+    // null until set, the default ciphers are the candidates supported by the provider when the context is built
+    private String[] ciphers;
     private String[] protocols = new String[] { "TLSv1.2", "TLSv1.3" };
     private String[] certificateAuthorities;
     private final String passphrase;
@@ -114,20 +137,101 @@ public class SslContextBuilder {
         return this;
     }
 
+    /**
+     * Selects the TLS implementation. {@link SslProvider#OPENSSL} uses netty-tcnative, shipped with the native
+     * BoringSSL library of the common platforms, and is usually much faster than the JDK at bulk encryption and
+     * handshakes. When OpenSSL is not available a warning is logged and the JDK implementation is used.
+     * Ciphers are checked against the selected implementation, by {@link #setCipherSuites} and again here for those
+     * already set.
+     * @throws IllegalArgumentException if a cipher set with {@link #setCipherSuites} is not supported by the selected
+     * implementation
+     */
+    public SslContextBuilder setSslProvider(SslProvider provider) throws IllegalArgumentException {
+        if (provider == SslProvider.JDK) {
+            sslProvider = SslProvider.JDK;
+        } else if (OpenSsl.isAvailable()) {
+            logger.info("Using {} for TLS", OpenSsl.versionString());
+            sslProvider = provider;
+        } else {
+            logger.warn("OpenSSL is not available, falling back to the JDK TLS implementation: {}", String.valueOf(OpenSsl.unavailabilityCause()));
+            sslProvider = SslProvider.JDK;
+        }
+        if (ciphers != null) {
+            checkSupported(ciphers);
+        }
+        return this;
+    }
+
+    /**
+     * @return the TLS implementation used by the built context
+     */
+    public SslProvider getSslProvider() {
+        return sslProvider;
+    }
+
+    /**
+     * @return the ciphers supported by the selected TLS implementation, with their Java names
+     */
+    public Set<String> getSupportedCiphers() {
+        return sslProvider == SslProvider.JDK ? getSupportedJdkCiphers() : OpenSsl.availableJavaCipherSuites();
+    }
+
+    /**
+     * @return the ciphers supported by the JDK TLS implementation, looked up on first call
+     */
+    public static Set<String> getSupportedJdkCiphers() {
+        return JdkCiphers.SUPPORTED;
+    }
+
+    /**
+     * Sets the number of sessions kept by the server to resume the handshakes of reconnecting clients, without
+     * calling it the default of the TLS implementation applies.
+     * @param sessionCacheSize maximum number of cached sessions, 0 for no limit
+     */
+    public SslContextBuilder setSessionCacheSize(long sessionCacheSize) {
+        if (sessionCacheSize < 0) {
+            throw new IllegalArgumentException("Session cache size must not be negative, got " + sessionCacheSize);
+        }
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    /**
+     * Sets how long a session can be resumed, from the cache or from a session ticket, without calling it the default
+     * of the TLS implementation applies.
+     * @param sessionTimeoutSeconds session lifetime in seconds, 0 for no limit
+     */
+    public SslContextBuilder setSessionTimeout(long sessionTimeoutSeconds) {
+        if (sessionTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("Session timeout must not be negative, got " + sessionTimeoutSeconds);
+        }
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        return this;
+    }
+
+    /**
+     * @param ciphersSuite ciphers offered to the clients, in order of preference
+     * @throws IllegalArgumentException if a cipher is not supported by the TLS implementation selected with
+     * {@link #setSslProvider}
+     */
     public SslContextBuilder setCipherSuites(String[] ciphersSuite) throws IllegalArgumentException {
+        checkSupported(ciphersSuite);
+        ciphers = ciphersSuite;
+        return this;
+    }
+
+    private void checkSupported(String[] ciphersSuite) {
+        final Set<String> supportedCiphers = getSupportedCiphers();
         for (String cipher : ciphersSuite) {
-            if (SUPPORTED_CIPHERS.contains(cipher)) {
+            if (supportedCiphers.contains(cipher)) {
                 logger.debug("{} cipher is supported", cipher);
             } else {
-                if (!isUnlimitedJCEAvailable()) {
+                if (sslProvider == SslProvider.JDK && !isUnlimitedJCEAvailable()) {
                     logger.warn("JCE Unlimited Strength Jurisdiction Policy not installed");
                 }
-                throw new IllegalArgumentException("Cipher `" + cipher + "` is not available");
+                throw new IllegalArgumentException("Cipher `" + cipher + "` is not available" + (sslProvider == SslProvider.JDK ? "" : " with OpenSSL"));
             }
         }
-
-        ciphers = ciphersSuite;
-        return this;
     }
 
     public SslContextBuilder setClientAuthentication(SslClientVerifyMode verifyMode, String[] certificateAuthorities) {
@@ -148,9 +252,16 @@ public class SslContextBuilder {
         return verifyMode == SslClientVerifyMode.REQUIRED;
     }
 
+    /**
+     * @return the default ciphers in order of preference, before they are filtered by the TLS implementation
+     */
+    public static String[] getDefaultCipherCandidates() {
+        return DEFAULT_CIPHER_CANDIDATES.clone();
+    }
+
     public static String[] getDefaultCiphers() {
         if (isUnlimitedJCEAvailable()) {
-            return DEFAULT_CIPHERS;
+            return JdkCiphers.DEFAULTS.clone();
         } else {
             logger.warn("JCE Unlimited Strength Jurisdiction Policy not installed - max key length is 128 bits");
             return DEFAULT_CIPHERS_LIMITED;
@@ -168,14 +279,25 @@ public class SslContextBuilder {
 
     public SslContext buildContext() throws Exception {
         if (logger.isDebugEnabled()) {
-            logger.debug("Available ciphers: {}", SUPPORTED_CIPHERS);
-            logger.debug("Ciphers: {}", Arrays.toString(ciphers));
+            logger.debug("Available ciphers: {}", getSupportedCiphers());
+            logger.debug("Ciphers: {}", Arrays.toString(getCiphers()));
         }
 
         io.netty.handler.ssl.SslContextBuilder builder = io.netty.handler.ssl.SslContextBuilder
                 .forServer(sslCertificateFile, sslKeyFile, passphrase)
-                .ciphers(Arrays.asList(ciphers))
-                .protocols(protocols);
+                .sslProvider(sslProvider)
+                .ciphers(Arrays.asList(getCiphers()))
+                .protocols(supportedProtocols());
+        if (sslProvider == SslProvider.OPENSSL) {
+            // handshake work is only handed to the delegated task executor of the SslHandler when tasks are enabled
+            builder.option(OpenSslContextOption.USE_TASKS, true);
+        }
+        if (sessionCacheSize != null) {
+            builder.sessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeoutSeconds != null) {
+            builder.sessionTimeout(sessionTimeoutSeconds);
+        }
 
         if (isClientAuthenticationEnabled(verifyMode)) {
             if (logger.isDebugEnabled()) {
@@ -205,6 +327,21 @@ public class SslContextBuilder {
         }
     }
 
+    /*
+     * TLSv1.3 needs OpenSSL 1.1.1 or BoringSSL, it is left out with a warning when the linked library is older.
+     */
+    private String[] supportedProtocols() {
+        if (sslProvider == SslProvider.JDK || SslProvider.isTlsv13Supported(sslProvider) || !Arrays.asList(protocols).contains("TLSv1.3")) {
+            return protocols;
+        }
+        final String[] supported = Arrays.stream(protocols).filter(protocol -> !"TLSv1.3".equals(protocol)).toArray(String[]::new);
+        if (supported.length == 0) {
+            throw new IllegalArgumentException("TLSv1.3 is not supported by " + OpenSsl.versionString() + ", use the JDK TLS implementation or enable other protocols");
+        }
+        logger.warn("TLSv1.3 is not supported by {}, only enabling {}", OpenSsl.versionString(), Arrays.toString(supported));
+        return supported;
+    }
+
     private X509Certificate[] loadCertificateCollection(String[] certificates) throws IOException, CertificateException {
         logger.debug("Load certificates collection");
         CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
@@ -230,15 +367,52 @@ public class SslContextBuilder {
         return protocols != null ? protocols.clone() : null;
     }
 
+    /**
+     * @return the certificate, key and certificate authorities files read when building a context
+     */
+    List<File> getFiles() {
+        final List<File> files = new ArrayList<>();
+        files.add(sslCertificateFile);
+        files.add(sslKeyFile);
+        if (certificateAuthorities != null) {
+            for (String certificateAuthority : certificateAuthorities) {
+                files.add(new File(certificateAuthority));
+            }
+        }
+        return files;
+    }
+
     String[] getCertificateAuthorities() {
         return certificateAuthorities != null ? certificateAuthorities.clone() : null;
     }
 
+    /*
+     * The configured ciphers, all supported by the provider, or the Mozilla candidates it supports when none is
+     * configured. With OpenSSL, the defaults are the candidates, not those of the native library.
+     */
     String[] getCiphers() {
-        return ciphers != null ? ciphers.clone() : null;
+        if (ciphers != null) {
+            return ciphers;
+        }
+        if (sslProvider == SslProvider.JDK) {
+            return getDefaultCiphers();
+        }
+        final Set<String> supportedCiphers = getSupportedCiphers();
+        return Arrays.stream(DEFAULT_CIPHER_CANDIDATES).filter(supportedCiphers::contains).toArray(String[]::new);
     }
 
     SslClientVerifyMode getVerifyMode() {
         return verifyMode;
     }
+
+    /*
+     * Creating the default SSLServerSocketFactory initializes the JDK TLS implementation, which is only done when JDK
+     * ciphers are needed rather than when this class is loaded.
+     */
+    private static final class JdkCiphers {
+        private static final Set<String> SUPPORTED = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+                ((SSLServerSocketFactory) SSLServerSocketFactory.getDefault()).getSupportedCipherSuites()
+        )));
+        private static final String[] DEFAULTS = Arrays.stream(DEFAULT_CIPHER_CANDIDATES).filter(SUPPORTED::contains).toArray(String[]::new);
+    }
 }
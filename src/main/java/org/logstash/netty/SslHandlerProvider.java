@@ -1,22 +1,362 @@
 package org.logstash.netty;
 
+import io.netty.channel.Channel;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.ssl.OpenSslContext;
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.internal.tcnative.SSL;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.logstash.beats.util.DaemonThreadFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SslHandlerProvider {
+    private static final Logger logger = LogManager.getLogger(SslHandlerProvider.class);
+
+    // sessions remembered to recognize resumed handshakes, the default size of the JDK session cache
+    private static final int KNOWN_SESSIONS = 20_480;
+    // handshake tasks waiting for a handshake thread, beyond them the event loops run their own tasks
+    private static final int MAX_QUEUED_HANDSHAKE_TASKS = 1024;
 
-    private final SslContext sslContext;
+    private final SslContextBuilder contextBuilder;
     private final int sslHandshakeTimeoutMillis;
+    private final TlsMetrics metrics = new TlsMetrics();
+    // ids and creation times of the JDK sessions negotiated by the handshakes of this provider, least recently used
+    // first, guarded by itself
+    private final Map<Object, Boolean> knownSessions = new LinkedHashMap<Object, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Boolean> eldest) {
+            return size() > KNOWN_SESSIONS;
+        }
+    };
+    private volatile SslContext sslContext;
+    private volatile SessionTicketKeys sessionTicketKeys;
+    private long sessionTicketKeyRotationSeconds;
+
+    // 0 when the files are not watched
+    private long reloadCheckIntervalMillis;
+    // checks the files between start and stop
+    private ScheduledExecutorService reloadExecutor;
+    private List<Long> loadedFilesState;
+    private List<Long> changedFilesState;
+
+    // id of the server while the provider is started
+    private String id;
+    // 0 when the handshake tasks run on the event loop of the connection
+    private int handshakeThreads;
+    // running between start and stop when there are handshake threads
+    private volatile ExecutorService handshakeExecutor;
+    // given to the handlers, a task rejected by a full, replaced or stopped pool runs on the event loop
+    private final Executor handshakeTasks = task -> {
+        final ExecutorService executor = handshakeExecutor;
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    };
+    // 0 when the handshakes in progress are not limited
+    private int maxHandshakesInProgress;
+    private final Object handshakesLock = new Object();
+    private int handshakesInProgress;
 
     public SslHandlerProvider(SslContext context, int sslHandshakeTimeoutMillis){
+        this(null, context, sslHandshakeTimeoutMillis);
+    }
+
+    /**
+     * Creates a provider able to rebuild its context when the certificate, key or certificate authorities change,
+     * see {@link #reload()} and {@link #setReloadCheckInterval(long)}.
+     */
+    public SslHandlerProvider(SslContextBuilder contextBuilder, int sslHandshakeTimeoutMillis) throws Exception {
+        this(contextBuilder, contextBuilder.buildContext(), sslHandshakeTimeoutMillis);
+    }
+
+    private SslHandlerProvider(SslContextBuilder contextBuilder, SslContext context, int sslHandshakeTimeoutMillis) {
+        this.contextBuilder = contextBuilder;
         this.sslContext = context;
         this.sslHandshakeTimeoutMillis = sslHandshakeTimeoutMillis;
     }
 
+    /**
+     * Regularly replaces the keys encrypting the session tickets, only supported by OpenSSL contexts. The JDK
+     * rotates its own ticket keys, its tickets are enabled with the {@code jdk.tls.server.enableSessionTicketExtension}
+     * system property.
+     * @param rotationSeconds interval between two rotations
+     */
+    public synchronized void setSessionTicketKeyRotation(long rotationSeconds) {
+        if (rotationSeconds <= 0) {
+            throw new IllegalArgumentException("Session ticket key rotation must be positive, got " + rotationSeconds);
+        }
+        if (sslContext instanceof OpenSslContext) {
+            sessionTicketKeyRotationSeconds = rotationSeconds;
+            sessionTicketKeys = new SessionTicketKeys(((OpenSslContext) sslContext).sessionContext(), rotationSeconds);
+        } else {
+            logger.warn("Session ticket keys can only be rotated with OpenSSL, the JDK rotates its own keys");
+        }
+    }
+
+    /**
+     * Runs the delegated tasks of the handshakes, where the engines do the signatures and key exchanges, on a pool of
+     * daemon threads instead of the event loops, so that a burst of handshakes does not delay the reads of the
+     * established connections. Idle threads stop after a minute. The pool runs while the provider is started, when
+     * its queue is full the event loops run the tasks of their handshakes themselves.
+     * @param threads maximum number of threads running handshake tasks
+     */
+    public synchronized void setHandshakeThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Handshake threads must be positive, got " + threads);
+        }
+        handshakeThreads = threads;
+        if (id != null) {
+            // the tasks already queued run before the threads of the previous pool stop
+            final ExecutorService previous = handshakeExecutor;
+            handshakeExecutor = newHandshakeExecutor();
+            if (previous != null) {
+                previous.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Limits the handshakes in progress. Once the limit is reached the server stops accepting connections, new
+     * connections wait in the accept backlog of the listening socket until a handshake completes or fails.
+     * @param maxHandshakes maximum number of handshakes in progress
+     */
+    public void setMaxHandshakesInProgress(int maxHandshakes) {
+        if (maxHandshakes <= 0) {
+            throw new IllegalArgumentException("Maximum handshakes in progress must be positive, got " + maxHandshakes);
+        }
+        synchronized (handshakesLock) {
+            maxHandshakesInProgress = maxHandshakes;
+        }
+    }
+
+    /**
+     * @return the number of connections which are doing their handshake
+     */
+    public int getHandshakesInProgress() {
+        synchronized (handshakesLock) {
+            return handshakesInProgress;
+        }
+    }
+
+    /**
+     * Checks the modification time and size of the certificate, key and certificate authorities files once per
+     * interval, from a daemon thread running while the provider is started. Once changed files stay unchanged for an
+     * interval, so that a certificate is not loaded with the key it replaces, the context is rebuilt for the new
+     * connections.
+     * @param intervalMillis time between two checks of the files
+     */
+    public synchronized void setReloadCheckInterval(long intervalMillis) {
+        if (contextBuilder == null) {
+            throw new IllegalStateException("Certificates can only be reloaded by a provider created from a SslContextBuilder");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Reload check interval must be positive, got " + intervalMillis);
+        }
+        loadedFilesState = filesState();
+        reloadCheckIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts the background tasks of the provider, called by the server when it starts listening.
+     * @param id id of the server, names the threads of the provider
+     */
+    public synchronized void start(String id) {
+        this.id = id;
+        if (handshakeThreads > 0 && handshakeExecutor == null) {
+            handshakeExecutor = newHandshakeExecutor();
+        }
+        if (reloadCheckIntervalMillis > 0 && reloadExecutor == null) {
+            reloadExecutor = Executors.newSingleThreadScheduledExecutor(DaemonThreadFactory.daemonThreadFactory(id + "-ssl-reload"));
+            reloadExecutor.scheduleWithFixedDelay(this::reloadIfChanged, reloadCheckIntervalMillis, reloadCheckIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background tasks of the provider, called by the server when it stops. The provider keeps creating
+     * handlers and can be started again.
+     */
+    public synchronized void stop() {
+        id = null;
+        if (handshakeExecutor != null) {
+            // the event loops are stopped, the connections waiting for their handshake tasks are closed
+            handshakeExecutor.shutdownNow();
+            handshakeExecutor = null;
+        }
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+            reloadExecutor = null;
+        }
+    }
+
+    /**
+     * Builds a new context from the current certificate, key and certificate authorities files. Connections created
+     * afterwards use the new context, open connections are not affected. When the context cannot be built the error
+     * is logged and the previous context is kept.
+     * @return true when the new context is used
+     */
+    public synchronized boolean reload() {
+        if (contextBuilder == null) {
+            throw new IllegalStateException("Certificates can only be reloaded by a provider created from a SslContextBuilder");
+        }
+        final SslContext reloaded;
+        try {
+            reloaded = contextBuilder.buildContext();
+        } catch (Exception e) {
+            logger.error("Failed to reload the SSL certificates, new connections keep using the previous ones", e);
+            return false;
+        }
+        // tickets and cached sessions belong to the previous context, clients do a full handshake once
+        if (sessionTicketKeys != null && reloaded instanceof OpenSslContext) {
+            sessionTicketKeys = new SessionTicketKeys(((OpenSslContext) reloaded).sessionContext(), sessionTicketKeyRotationSeconds);
+        }
+        sslContext = reloaded;
+        logger.info("Reloaded the SSL certificates, they are used by new connections");
+        return true;
+    }
+
+    /**
+     * @return the handshake counters of the connections created by this provider
+     */
+    public TlsMetrics getMetrics() {
+        return metrics;
+    }
+
     public SslHandler sslHandlerForChannel(final SocketChannel socket) {
-        SslHandler handler =  sslContext.newHandler(socket.alloc());
+        final SslContext context = sslContext;
+        final SessionTicketKeys ticketKeys = sessionTicketKeys;
+        if (ticketKeys != null) {
+            ticketKeys.rotateIfNeeded();
+        }
+        SslHandler handler = handshakeExecutor == null ? context.newHandler(socket.alloc()) : context.newHandler(socket.alloc(), handshakeTasks);
         handler.setHandshakeTimeoutMillis(sslHandshakeTimeoutMillis);
+        final long createdMillis = System.currentTimeMillis();
+        final long createdNanos = System.nanoTime();
+        handshakeStarted(socket.parent());
+        handler.handshakeFuture().addListener(future -> {
+            handshakeEnded(socket.parent());
+            if (future.isSuccess()) {
+                final SSLSession session = handler.engine().getSession();
+                metrics.addHandshake(isResumed(handler.engine(), session, createdMillis), System.nanoTime() - createdNanos,
+                        session.getProtocol(), session.getCipherSuite());
+            } else {
+                metrics.addFailure(future.cause());
+                if (logger.isDebugEnabled()) {
+                    logger.debug("TLS handshake with {} failed: {}", socket.remoteAddress(), future.cause().toString());
+                }
+            }
+        });
         return handler;
     }
+
+    /*
+     * Reading the listening channel is what accepts connections, the lock keeps its auto read consistent with the
+     * count when handshakes start and end concurrently on different event loops.
+     */
+    private void handshakeStarted(Channel listener) {
+        synchronized (handshakesLock) {
+            handshakesInProgress++;
+            if (maxHandshakesInProgress > 0 && handshakesInProgress >= maxHandshakesInProgress && listener != null
+                    && listener.config().isAutoRead()) {
+                logger.debug("{} handshakes in progress, pausing the accept of connections", handshakesInProgress);
+                listener.config().setAutoRead(false);
+            }
+        }
+    }
+
+    private void handshakeEnded(Channel listener) {
+        synchronized (handshakesLock) {
+            handshakesInProgress--;
+            if (handshakesInProgress < maxHandshakesInProgress && listener != null && !listener.config().isAutoRead()) {
+                logger.debug("{} handshakes in progress, resuming the accept of connections", handshakesInProgress);
+                listener.config().setAutoRead(true);
+            }
+        }
+    }
+
+    private ExecutorService newHandshakeExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_HANDSHAKE_TASKS), DaemonThreadFactory.daemonThreadFactory(id + "-ssl-handshake"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    SslContext getSslContext() {
+        return sslContext;
+    }
+
+    /*
+     * Runs on the reload thread, connections keep being created with the current context while the files are
+     * checked and the new context is built.
+     */
+    synchronized void reloadIfChanged() {
+        final List<Long> state = filesState();
+        if (state.equals(loadedFilesState)) {
+            changedFilesState = null;
+        } else if (!state.equals(changedFilesState)) {
+            logger.debug("SSL certificate files changed, reloading them once they stop changing");
+            changedFilesState = state;
+        } else {
+            // a failed reload is retried once the files change again
+            loadedFilesState = state;
+            changedFilesState = null;
+            reload();
+        }
+    }
+
+    private List<Long> filesState() {
+        final List<Long> state = new ArrayList<>();
+        for (File file : contextBuilder.getFiles()) {
+            state.add(file.lastModified());
+            state.add(file.length());
+        }
+        return state;
+    }
+
+    /*
+     * OpenSSL tells if the session was reused. The JDK does not, but a session it resumes keeps the id of the
+     * original session with TLSv1.2, and its creation time with TLSv1.3 where it gets a new id. The sessions negotiated
+     * by the handshakes of this provider are remembered, a handshake ending with one of them resumed it.
+     */
+    private boolean isResumed(SSLEngine engine, SSLSession session, long handshakeStartMillis) {
+        if (engine instanceof ReferenceCountedOpenSslEngine) {
+            final long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+            return ssl != 0 && SSL.isSessionReused(ssl);
+        }
+        if (session == null || session.getId() == null || session.getId().length == 0) {
+            return false;
+        }
+        final ByteBuffer id = ByteBuffer.wrap(session.getId());
+        final Long creationTime = session.getCreationTime();
+        synchronized (knownSessions) {
+            final boolean knownId = knownSessions.put(id, Boolean.TRUE) != null;
+            final boolean knownCreationTime = knownSessions.put(creationTime, Boolean.TRUE) != null;
+            return knownId || (knownCreationTime && creationTime < handshakeStartMillis);
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package org.logstash.netty;
+
+import io.netty.handler.ssl.NotSslRecordException;
+import io.netty.handler.ssl.SslClosedEngineException;
+import io.netty.handler.ssl.SslHandshakeTimeoutException;
+import org.logstash.beats.LatencyHistogram;
+
+import java.nio.channels.ClosedChannelException;
+import java.security.cert.CertPathBuilderException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the TLS handshakes of the connections created by a {@link SslHandlerProvider}: durations of the
+ * successful handshakes, the protocols and cipher suites they negotiated, and the causes of the failed ones.
+ */
+public class TlsMetrics {
+
+    public static final String FAILURE_TIMEOUT = "timeout";
+    public static final String FAILURE_BAD_CERTIFICATE = "bad_certificate";
+    public static final String FAILURE_PROTOCOL_MISMATCH = "protocol_mismatch";
+    public static final String FAILURE_NOT_TLS = "not_tls";
+    public static final String FAILURE_CLOSED = "closed";
+    public static final String FAILURE_OTHER = "other";
+
+    // causes are only looked for in the first exceptions of a chain
+    private static final int MAX_CAUSE_DEPTH = 5;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LatencyHistogram handshakeDuration = new LatencyHistogram();
+    private final ConcurrentMap<String, LongAdder> protocols = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> cipherSuites = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    /**
+     * @return number of successful handshakes
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * @return number of successful handshakes that resumed a previous session, from the session cache or a ticket
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Returns the durations of the successful handshakes, from the creation of the connection to the end of its
+     * handshake. Use {@link LatencyHistogram#getIntervalHistogram()} to get the durations of consecutive intervals.
+     * @return the {@link LatencyHistogram} of the handshake durations
+     */
+    public LatencyHistogram getHandshakeDuration() {
+        return handshakeDuration;
+    }
+
+    /**
+     * @return number of successful handshakes by negotiated protocol, e.g. {@code TLSv1.3}
+     */
+    public Map<String, Long> getProtocols() {
+        return snapshot(protocols);
+    }
+
+    /**
+     * @return number of successful handshakes by negotiated cipher suite
+     */
+    public Map<String, Long> getCipherSuites() {
+        return snapshot(cipherSuites);
+    }
+
+    /**
+     * @return number of failed handshakes
+     */
+    public long getFailedHandshakes() {
+        long failed = 0;
+        for (LongAdder count : failures.values()) {
+            failed += count.sum();
+        }
+        return failed;
+    }
+
+    /**
+     * @return number of failed handshakes by cause, one of the {@code FAILURE_*} constants
+     */
+    public Map<String, Long> getFailures() {
+        return snapshot(failures);
+    }
+
+    void addHandshake(boolean resumed, long durationNanos, String protocol, String cipherSuite) {
+        handshakes.increment();
+        if (resumed) {
+            resumedHandshakes.increment();
+        }
+        handshakeDuration.record(durationNanos);
+        increment(protocols, protocol);
+        increment(cipherSuites, cipherSuite);
+    }
+
+    void addFailure(Throwable cause) {
+        increment(failures, failureCause(cause));
+    }
+
+    /*
+     * The JDK and OpenSSL engines report most failures as SSLHandshakeException, the cause is told by the exceptions
+     * they wrap or by the alert in the message.
+     */
+    static String failureCause(Throwable cause) {
+        if (cause instanceof SslHandshakeTimeoutException) {
+            return FAILURE_TIMEOUT;
+        }
+        if (cause instanceof NotSslRecordException) {
+            return FAILURE_NOT_TLS;
+        }
+        if (cause instanceof ClosedChannelException || cause instanceof SslClosedEngineException) {
+            return FAILURE_CLOSED;
+        }
+        Throwable current = cause;
+        for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++, current = current.getCause()) {
+            if (current instanceof CertificateException || current instanceof CertPathValidatorException
+                    || current instanceof CertPathBuilderException) {
+                return FAILURE_BAD_CERTIFICATE;
+            }
+            final String message = current.getMessage() == null ? "" : current.getMessage().toLowerCase(Locale.ROOT);
+            if (message.contains("certificate")) {
+                return FAILURE_BAD_CERTIFICATE;
+            }
+            if (message.contains("protocol") || message.contains("cipher")) {
+                return FAILURE_PROTOCOL_MISMATCH;
+            }
+        }
+        return FAILURE_OTHER;
+    }
+
+    private static void increment(ConcurrentMap<String, LongAdder> counts, String key) {
+        counts.computeIfAbsent(key == null ? "unknown" : key, k -> new LongAdder()).increment();
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, LongAdder> counts) {
+        final Map<String, Long> snapshot = new TreeMap<>();
+        counts.forEach((key, count) -> snapshot.put(key, count.sum()));
+        return snapshot;
+    }
+}
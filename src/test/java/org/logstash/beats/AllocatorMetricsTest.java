@@ -0,0 +1,51 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+
+public class AllocatorMetricsTest {
+
+    @Test
+    public void testHugeAllocationsAreTracked() {
+        PooledByteBufAllocator allocator = new PooledByteBufAllocator(true, 1, 1, 8192, 4, 0, 0, false);
+        AllocatorMetrics empty = AllocatorMetrics.sample(allocator);
+        assertEquals(0, empty.getChunks());
+        assertEquals(0, empty.getChunkUsage());
+
+        ByteBuf pooled = allocator.directBuffer(1024);
+        ByteBuf huge = allocator.directBuffer(allocator.metric().chunkSize() * 2);
+        AllocatorMetrics metrics = AllocatorMetrics.sample(allocator);
+
+        assertEquals(1, metrics.getDirectArenas());
+        assertEquals(1, metrics.getHugeAllocations());
+        assertEquals(1, metrics.getActiveHugeAllocations());
+        assertThat(metrics.getUsedDirectMemory(), greaterThanOrEqualTo((long) metrics.getChunkSize() * 2));
+        assertThat(metrics.getActiveBytes(), greaterThanOrEqualTo((long) metrics.getChunkSize() * 2));
+
+        huge.release();
+        pooled.release();
+        metrics = AllocatorMetrics.sample(allocator);
+        assertEquals(0, metrics.getActiveHugeAllocations());
+        assertThat(metrics.getMaxDirectMemory(), greaterThan(0L));
+    }
+
+    @Test
+    public void testSizesOfTheJvmOptions() {
+        assertEquals(1024, AllocatorMetrics.parseSize("1024"));
+        assertEquals(512L << 10, AllocatorMetrics.parseSize("512k"));
+        assertEquals(256L << 20, AllocatorMetrics.parseSize("256M"));
+        assertEquals(2L << 30, AllocatorMetrics.parseSize("2g"));
+        assertEquals(1L << 40, AllocatorMetrics.parseSize("1T"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testInvalidSize() {
+        AllocatorMetrics.parseSize("lots");
+    }
+}
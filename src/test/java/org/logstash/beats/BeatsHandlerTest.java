@@ -7,11 +7,18 @@ import org.junit.Test;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -39,7 +46,6 @@ public class BeatsHandlerTest {
 
         @Override
         public void onNewConnection(ChannelHandlerContext ctx) {
-            ctx.channel().attr(ConnectionHandler.CHANNEL_SEND_KEEP_ALIVE).set(new AtomicBoolean(false));
             onNewConnectionCalled = true;
         }
 
@@ -76,6 +82,24 @@ public class BeatsHandlerTest {
         }
     }
 
+    private class AsyncSpyListener extends SpyListener implements IAsyncMessageListener {
+        private final List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        @Override
+        public CompletionStage<?> onNewBatch(ChannelHandlerContext ctx, Iterable<Message> messages) {
+            for (Message message : messages) {
+                onNewMessage(ctx, message);
+            }
+            CompletableFuture<Void> accepted = new CompletableFuture<>();
+            pending.add(accepted);
+            return accepted;
+        }
+
+        void acceptAll() {
+            pending.forEach(f -> f.complete(null));
+        }
+    }
+
     @Before
     public void setup() {
         spyListener = new SpyListener();
@@ -115,6 +139,18 @@ public class BeatsHandlerTest {
         embeddedChannel.close();
     }
 
+    @Test
+    public void testMessagesCarryTheConnectionState() {
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(spyListener));
+        embeddedChannel.writeInbound(batch);
+
+        ConnectionState state = ConnectionState.of(embeddedChannel);
+        for (Message message : spyListener.getLastMessages()) {
+            assertSame(state, message.getConnectionState());
+        }
+        embeddedChannel.close();
+    }
+
     @Test
     public void testAcksLastMessageInBatch() {
         EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(spyListener));
@@ -136,4 +172,133 @@ public class BeatsHandlerTest {
         assertEquals(0, ack.getSequence());
         embeddedChannel.close();
     }
+
+    @Test
+    public void testAsyncListenerAcksOnlyOnceMessagesAreAccepted() {
+        AsyncSpyListener asyncListener = new AsyncSpyListener();
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(asyncListener));
+        embeddedChannel.writeInbound(batch);
+        embeddedChannel.runPendingTasks();
+
+        assertEquals(messageCount, asyncListener.getLastMessages().size());
+        assertNull(embeddedChannel.readOutbound());
+
+        asyncListener.acceptAll();
+        embeddedChannel.runPendingTasks();
+
+        Ack ack = embeddedChannel.readOutbound();
+        assertEquals(Protocol.VERSION_1, ack.getProtocol());
+        assertEquals(startSequenceNumber + messageCount - 1, ack.getSequence());
+        embeddedChannel.close();
+    }
+
+    @Test
+    public void testAsyncListenerAcksBatchesInOrder() {
+        AsyncSpyListener asyncListener = new AsyncSpyListener();
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(asyncListener));
+        V1Batch nextBatch = new V1Batch();
+        nextBatch.setBatchSize(1);
+        nextBatch.addMessage(new Message(startSequenceNumber + messageCount, new HashMap()));
+
+        embeddedChannel.writeInbound(batch);
+        embeddedChannel.writeInbound(nextBatch);
+        assertFalse(embeddedChannel.config().isAutoRead());
+
+        // accept the second batch first
+        asyncListener.pending.get(1).complete(null);
+        embeddedChannel.runPendingTasks();
+        assertNull(embeddedChannel.readOutbound());
+
+        asyncListener.acceptAll();
+        embeddedChannel.runPendingTasks();
+
+        Ack first = embeddedChannel.readOutbound();
+        Ack second = embeddedChannel.readOutbound();
+        assertEquals(startSequenceNumber + messageCount - 1, first.getSequence());
+        assertEquals(startSequenceNumber + messageCount, second.getSequence());
+        assertTrue(embeddedChannel.config().isAutoRead());
+        embeddedChannel.close();
+    }
+
+    @Test
+    public void testAsyncListenerGetsOneStagePerBatch() {
+        AsyncSpyListener asyncListener = new AsyncSpyListener();
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(asyncListener, null, null, null, 1));
+        embeddedChannel.writeInbound(batch);
+
+        assertEquals(1, asyncListener.pending.size());
+        assertEquals(messageCount, asyncListener.getLastMessages().size());
+        assertFalse("a single batch may wait for the listener", embeddedChannel.config().isAutoRead());
+
+        asyncListener.acceptAll();
+        embeddedChannel.runPendingTasks();
+        assertTrue(embeddedChannel.config().isAutoRead());
+        embeddedChannel.close();
+    }
+
+    @Test
+    public void testAsyncListenerRejectedBatchIsNotAckedAndClosesConnection() {
+        AsyncSpyListener asyncListener = new AsyncSpyListener();
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(asyncListener));
+        embeddedChannel.writeInbound(batch);
+
+        asyncListener.pending.get(0).completeExceptionally(new RuntimeException("queue closed"));
+        asyncListener.acceptAll();
+        embeddedChannel.runPendingTasks();
+
+        assertNull(embeddedChannel.readOutbound());
+        assertTrue(asyncListener.isOnExceptionCalled());
+        assertFalse(embeddedChannel.isActive());
+    }
+
+    @Test
+    public void testDroppedMessagesAreAckedWithTheirBatch() {
+        V1Batch filtered = new V1Batch();
+        filtered.setBatchSize(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            Map<String, String> data = new HashMap<>();
+            data.put("level", i % 2 == 0 ? "debug" : "info");
+            filtered.addMessage(new Message(i + startSequenceNumber, data));
+        }
+        MessageFilter filter = new MessageFilter(Collections.singletonMap("level", Collections.singletonList("debug")));
+
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(spyListener, null, filter, null));
+        embeddedChannel.writeInbound(filtered);
+
+        assertEquals(messageCount / 2, spyListener.getLastMessages().size());
+        Ack ack = embeddedChannel.readOutbound();
+        assertEquals(startSequenceNumber + messageCount - 1, ack.getSequence());
+        embeddedChannel.close();
+    }
+
+    @Test
+    public void testAckLatencyIsRecordedFromTheFirstByteOfTheWindow() {
+        InputMetrics inputMetrics = new InputMetrics();
+        LatencyHistogram inputAckLatency = inputMetrics.getAckLatency();
+        batch.setReceivedNanos(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50));
+
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(spyListener, null, null, inputMetrics));
+        embeddedChannel.writeInbound(batch);
+
+        assertEquals(1, inputAckLatency.getCount());
+        assertTrue(inputAckLatency.getMaxMicros() >= 50_000);
+        // the connection only keeps its own latencies for the debug log
+        assertNull(ConnectionState.of(embeddedChannel).getAckLatency());
+        embeddedChannel.close();
+    }
+
+    @Test
+    public void testConnectionsAreTrackedWhileOpen() {
+        InputMetrics inputMetrics = new InputMetrics();
+        EmbeddedChannel embeddedChannel = new EmbeddedChannel(new BeatsHandler(spyListener, null, null, inputMetrics));
+        ConnectionState state = ConnectionState.of(embeddedChannel);
+        state.markRead(100, System.nanoTime());
+
+        assertEquals(Collections.singletonList(state), new ArrayList<>(inputMetrics.getConnections()));
+        assertEquals(100, inputMetrics.getTotals().getBytesRead());
+
+        embeddedChannel.close();
+        assertTrue(inputMetrics.getConnections().isEmpty());
+        assertEquals(100, inputMetrics.getTotals().getBytesRead());
+    }
 }
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -125,6 +126,26 @@ public class BeatsParserTest {
         assertMessages(this.v1Batch, decodedBatch);
     }
 
+    @Test
+    public void testPartialFrameBufferIsTrimmedWhenReaderIdle() {
+        EmbeddedChannel encoder = new EmbeddedChannel(new BatchEncoder());
+        encoder.writeOutbound(byteBufBatch);
+        ByteBuf encoded = encoder.readOutbound();
+
+        EmbeddedChannel channel = new EmbeddedChannel(new BeatsParser());
+        // the window header and the start of the first Json frame, in a buffer sized like a socket read
+        ByteBuf partial = Unpooled.buffer(65536).writeBytes(encoded, 10);
+        channel.writeInbound(partial);
+        assertEquals(65536, partial.capacity());
+
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+        assertEquals(partial.readableBytes(), partial.capacity());
+
+        channel.writeInbound(encoded);
+        assertMessages(byteBufBatch, (Batch) channel.readInbound());
+        channel.finishAndReleaseAll();
+    }
+
     @Test
     public void testShouldNotCrashOnGarbageData() {
         thrown.expectCause(isA(InvalidFrameProtocolException.class));
@@ -266,6 +287,83 @@ public class BeatsParserTest {
 
 
 
+    @Test
+    public void testWindowsCarryTheTimeOfTheReadHoldingTheirFirstByte() {
+        assertWindowsReceivedNanos(new BatchEncoder());
+    }
+
+    @Test
+    public void testCompressedWindowsCarryTheTimeOfTheReadHoldingTheirFirstByte() {
+        assertWindowsReceivedNanos(new CompressedBatchEncoder());
+    }
+
+    private void assertWindowsReceivedNanos(BatchEncoder encoder) {
+        EmbeddedChannel channel = new EmbeddedChannel(encoder, new BeatsParser());
+        channel.writeOutbound(byteBufBatch);
+        ByteBuf first = channel.readOutbound();
+        channel.writeOutbound(v1Batch);
+        ByteBuf second = channel.readOutbound();
+
+        // the reads are marked as the ConnectionHandler does, before the parser gets their bytes
+        ConnectionState state = ConnectionState.of(channel);
+        state.markRead(first.readableBytes() - 1, 1000L);
+        channel.writeInbound(first.retainedSlice(0, first.readableBytes() - 1));
+        state.markRead(second.readableBytes() + 1, 2000L);
+        channel.writeInbound(Unpooled.wrappedBuffer(first.retainedSlice(first.readableBytes() - 1, 1), second));
+        first.release();
+
+        Batch firstBatch = channel.readInbound();
+        Batch secondBatch = channel.readInbound();
+        assertEquals(1000L, firstBatch.getReceivedNanos());
+        assertEquals(2000L, secondBatch.getReceivedNanos());
+        firstBatch.release();
+        secondBatch.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testProtocolCountersOfTheConnection() {
+        EmbeddedChannel channel = new EmbeddedChannel(new CompressedBatchEncoder(), new BeatsParser());
+        channel.writeOutbound(byteBufBatch);
+        channel.writeInbound((Object) channel.readOutbound());
+        ((Batch) channel.readInbound()).release();
+
+        ConnectionMetrics metrics = ConnectionState.of(channel).getMetrics();
+        assertEquals(1, metrics.getWindows());
+        assertEquals(numberOfMessage, metrics.getEvents());
+        assertTrue(metrics.getAverageEventSize() > 0);
+        assertTrue(metrics.getCompressedBytes() > 0);
+        assertTrue(metrics.getInflatedBytes() > metrics.getCompressedBytes());
+        assertEquals(0, metrics.getPartialWindows());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testPartialWindowsAreCounted() throws JsonProcessingException {
+        ByteBuf payload = Unpooled.buffer();
+        payload.writeByte(Protocol.VERSION_2);
+        payload.writeByte('W');
+        payload.writeInt(2);
+        byte[] json = MAPPER.writeValueAsBytes(Collections.singletonMap("message", "only one"));
+        payload.writeByte(Protocol.VERSION_2);
+        payload.writeByte('J');
+        payload.writeInt(1);
+        payload.writeInt(json.length);
+        payload.writeBytes(json);
+        payload.writeByte(Protocol.VERSION_2);
+        payload.writeByte('W');
+        payload.writeInt(1);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new BeatsParser());
+        channel.writeInbound(payload);
+        Batch partial = channel.readInbound();
+
+        assertEquals(1, partial.size());
+        assertEquals(1, ConnectionState.of(channel).getMetrics().getPartialWindows());
+        partial.release();
+        channel.finishAndReleaseAll();
+    }
+
     private void sendPayloadToParser(ByteBuf payload) {
         EmbeddedChannel channel = new EmbeddedChannel(new BeatsParser());
         channel.writeOutbound(payload);
@@ -0,0 +1,158 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CaptureWriter writer;
+
+    @Before
+    public void setUp() {
+        writer = new CaptureWriter("test", folder.getRoot().toPath());
+    }
+
+    @After
+    public void tearDown() {
+        writer.stop();
+    }
+
+    @Test
+    public void testReadsAreCapturedAndPassedThrough() throws IOException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new CaptureHandler(writer));
+        channel.writeInbound(buffer("2W"), buffer("first"));
+        channel.writeInbound(buffer("second"));
+
+        assertEquals("2W", release(channel.readInbound()));
+        assertEquals("first", release(channel.readInbound()));
+        assertEquals("second", release(channel.readInbound()));
+        channel.close();
+        writer.stop();
+
+        try (CaptureReader reader = CaptureReader.open(captureFile())) {
+            assertEquals(channel.remoteAddress().toString(), reader.getRemoteAddress());
+            final CaptureReader.Read first = reader.next();
+            assertArrayEquals(bytes("2W"), first.getBytes());
+            assertArrayEquals(bytes("first"), reader.next().getBytes());
+            final CaptureReader.Read last = reader.next();
+            assertArrayEquals(bytes("second"), last.getBytes());
+            assertTrue(last.getNanos() >= first.getNanos());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testTruncatedReadIsIgnored() throws IOException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new CaptureHandler(writer));
+        channel.writeInbound(buffer("complete"), buffer("truncated"));
+        channel.finishAndReleaseAll();
+        writer.stop();
+
+        final Path file = captureFile();
+        final byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 3), StandardOpenOption.TRUNCATE_EXISTING);
+
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            assertArrayEquals(bytes("complete"), reader.next().getBytes());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testBytesArePassedThroughWhenTheCaptureCannotBeWritten() {
+        final CaptureWriter missing = new CaptureWriter("test", folder.getRoot().toPath().resolve("missing"));
+        final EmbeddedChannel channel = new EmbeddedChannel(new CaptureHandler(missing));
+        final ByteBuf payload = buffer("payload");
+        channel.writeInbound(payload);
+
+        final ByteBuf read = channel.readInbound();
+        assertNotNull(read);
+        assertEquals("payload", release(read));
+        channel.close();
+        missing.stop();
+        assertEquals(0, payload.refCnt());
+    }
+
+    @Test
+    public void testCaptureStopsWhenTheWriterFallsBehind() throws IOException {
+        final CaptureWriter slow = new CaptureWriter("test", folder.getRoot().toPath(), 4);
+        final EmbeddedChannel channel = new EmbeddedChannel(new CaptureHandler(slow));
+        channel.writeInbound(buffer("1234"));
+        channel.writeInbound(buffer("too large"), buffer("dropped"));
+
+        assertEquals("1234", release(channel.readInbound()));
+        assertEquals("too large", release(channel.readInbound()));
+        assertEquals("dropped", release(channel.readInbound()));
+        channel.close();
+        slow.stop();
+        assertEquals(0, slow.getPendingBytes());
+
+        try (CaptureReader reader = CaptureReader.open(captureFile())) {
+            // the reads queued before the one that did not fit are still written
+            assertArrayEquals(bytes("1234"), reader.next().getBytes());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testReadsAreDeflated() throws IOException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new CaptureHandler(writer));
+        final byte[] repeated = new byte[64 * 1024];
+        Arrays.fill(repeated, (byte) 'a');
+        channel.writeInbound(Unpooled.wrappedBuffer(repeated));
+        channel.finishAndReleaseAll();
+        writer.stop();
+
+        final Path file = captureFile();
+        assertTrue(Files.size(file) < repeated.length / 10);
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            assertArrayEquals(repeated, reader.next().getBytes());
+            assertNull(reader.next());
+        }
+    }
+
+    private Path captureFile() {
+        final File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(CaptureHandler.FILE_SUFFIX));
+        assertEquals(1, files.length);
+        return files[0].toPath();
+    }
+
+    private static ByteBuf buffer(String content) {
+        return Unpooled.copiedBuffer(content, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String release(ByteBuf buffer) {
+        try {
+            return buffer.toString(StandardCharsets.UTF_8);
+        } finally {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.logstash.beats;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.logstash.netty.SslContextBuilder;
+import org.logstash.netty.SslHandlerProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replays the connections recorded by {@link CaptureHandler}, one client per capture file, all starting at the same
+ * time. Every read of a capture is sent at its original time divided by {@code speed}, a speed of 0 sends the reads
+ * as fast as possible. Captures are decoded before the replay to know the windows they hold, clients disconnect once
+ * the last window is acknowledged.
+ * <p>
+ * Without {@code host} a server is started in this JVM, with a listener deserializing every message, and the windows,
+ * events and ACK latency seen by the server are reported. Options are given as {@code --name=value}:
+ * </p>
+ * <pre>
+ * gradle replayCapture -PreplayCaptureArgs=--captures=/tmp/captures,--speed=2,--ssl=true
+ * </pre>
+ */
+public class CaptureReplay {
+
+    private static final String SERVER_ID = "replay";
+    // gives up waiting for the ACKs of a client when none was received for this long
+    private static final long ACK_TIMEOUT_MILLIS = 30_000;
+
+    private final String captures;
+    private final String host;
+    private final int port;
+    private final double speed;
+    private final boolean ssl;
+
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder acks = new LongAdder();
+
+    CaptureReplay(CommandLineOptions options) {
+        this.captures = options.get("captures", null);
+        this.host = options.get("host", null);
+        this.port = Integer.parseInt(options.get("port", "5044"));
+        // 1 replays at the original speed, 0 without waiting between reads
+        this.speed = Double.parseDouble(options.get("speed", "1"));
+        this.ssl = Boolean.parseBoolean(options.get("ssl", "false"));
+        if (captures == null) {
+            throw new IllegalArgumentException("--captures is required, a capture file or a directory of capture files");
+        }
+        if (speed < 0) {
+            throw new IllegalArgumentException("--speed must be positive, got " + speed);
+        }
+        options.checkAllRead();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new CaptureReplay(CommandLineOptions.parse(args, 0)).run();
+    }
+
+    void run() throws Exception {
+        final List<Path> files = captureFiles(Paths.get(captures));
+        final Server server = host == null ? startServer() : null;
+        final NioEventLoopGroup group = new NioEventLoopGroup(Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            final SslContext clientContext = ssl ? io.netty.handler.ssl.SslContextBuilder.forClient()
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE).build() : null;
+            final String target = host == null ? "127.0.0.1" : host;
+            final List<Channel> channels = new ArrayList<>();
+            for (Path file : files) {
+                channels.add(connect(group, clientContext, target, expectedAcks(file)));
+            }
+            System.out.printf(Locale.ROOT, "replaying %d captures to %s:%d, speed: %s, ssl: %s%n",
+                    files.size(), target, port, speed > 0 ? speed + "x" : "unbounded", ssl);
+
+            final List<Thread> replays = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < files.size(); i++) {
+                final Path file = files.get(i);
+                final Channel channel = channels.get(i);
+                final Thread replay = new Thread(() -> replay(file, channel, start), SERVER_ID + "-client-" + file.getFileName());
+                replay.start();
+                replays.add(replay);
+            }
+            for (Thread replay : replays) {
+                replay.join();
+            }
+            report((System.nanoTime() - start) / 1e9, server);
+        } finally {
+            group.shutdownGracefully().sync();
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private void replay(Path file, Channel channel, long start) {
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            CaptureReader.Read read;
+            while ((read = reader.next()) != null && channel.isActive()) {
+                if (speed > 0) {
+                    final long sendTime = start + (long) (read.getNanos() / speed);
+                    long delay;
+                    while ((delay = sendTime - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                }
+                sentBytes.add(read.getBytes().length);
+                channel.writeAndFlush(Unpooled.wrappedBuffer(read.getBytes()));
+            }
+            awaitLastAck(channel);
+        } catch (IOException e) {
+            System.err.println("Failed to replay " + file + ": " + e.getMessage());
+        } finally {
+            channel.close().syncUninterruptibly();
+        }
+    }
+
+    private void awaitLastAck(Channel channel) {
+        final AckCounter counter = channel.pipeline().get(AckCounter.class);
+        counter.lastAckMillis.compareAndSet(0, System.currentTimeMillis());
+        while (channel.isActive() && !counter.expected.isEmpty()) {
+            if (System.currentTimeMillis() - counter.lastAckMillis.get() > ACK_TIMEOUT_MILLIS) {
+                System.err.println("Gave up waiting for the ACKs of " + counter.expected.size() + " windows");
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    /*
+     * Decodes the capture to get the highest sequence of every window, which is the sequence of its ACK.
+     */
+    private static Queue<Integer> expectedAcks(Path file) throws IOException {
+        final Queue<Integer> expected = new ConcurrentLinkedQueue<>();
+        final EmbeddedChannel decoder = new EmbeddedChannel(new BeatsParser());
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            CaptureReader.Read read;
+            while ((read = reader.next()) != null) {
+                decoder.writeInbound(Unpooled.wrappedBuffer(read.getBytes()));
+                Batch batch;
+                while ((batch = decoder.readInbound()) != null) {
+                    expected.add(batch.isEmpty() ? 0 : batch.getHighestSequence());
+                    batch.release();
+                }
+            }
+        } finally {
+            decoder.finishAndReleaseAll();
+        }
+        return expected;
+    }
+
+    private void report(double wallSeconds, Server server) {
+        System.out.printf(Locale.ROOT, "replayed:        %.1f MB in %.1fs, %.1f MB/s, %d windows acknowledged%n",
+                sentBytes.sum() / (1024.0 * 1024), wallSeconds, sentBytes.sum() / wallSeconds / (1024 * 1024), acks.sum());
+        if (server != null) {
+            final ConnectionMetrics totals = server.getMetrics().getTotals();
+            final LatencyHistogram latency = server.getAckLatency();
+            System.out.printf(Locale.ROOT, "server:          %d windows, %d events, %.0f events/s, %d compressed bytes inflated to %d%n",
+                    totals.getWindows(), totals.getEvents(), totals.getEvents() / wallSeconds, totals.getCompressedBytes(), totals.getInflatedBytes());
+            System.out.printf(Locale.ROOT, "ack latency ms:  p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                    latency.getPercentileMicros(50) / 1e3, latency.getPercentileMicros(99) / 1e3,
+                    latency.getPercentileMicros(99.9) / 1e3, latency.getMaxMicros() / 1e3);
+        }
+    }
+
+    private static List<Path> captureFiles(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            final List<Path> captureFiles = files.filter(file -> file.toString().endsWith(CaptureHandler.FILE_SUFFIX))
+                    .sorted().collect(Collectors.toList());
+            if (captureFiles.isEmpty()) {
+                throw new IllegalArgumentException("No capture file in " + path);
+            }
+            return captureFiles;
+        }
+    }
+
+    private Server startServer() throws Exception {
+        final Server server = new Server(SERVER_ID, "127.0.0.1", port, 60, 0, Runtime.getRuntime().availableProcessors());
+        server.setMessageListener(new MessageListener() {
+            @Override
+            public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+                message.getData();
+            }
+        });
+        if (ssl) {
+            final SslContextBuilder sslBuilder = new SslContextBuilder(resourcePath("/host.crt"), resourcePath("/host.key"), null);
+            server.setSslHandlerProvider(new SslHandlerProvider(sslBuilder.buildContext(), 10000));
+        }
+        final Thread serverThread = new Thread(() -> {
+            try {
+                server.listen();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, SERVER_ID + "-listen");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    private static String resourcePath(String resource) {
+        return new File(CaptureReplay.class.getResource(resource).getFile()).getAbsolutePath();
+    }
+
+    private Channel connect(NioEventLoopGroup group, SslContext sslContext, String target, Queue<Integer> expectedAcks) throws InterruptedException {
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        final ChannelPipeline pipeline = channel.pipeline();
+                        if (sslContext != null) {
+                            pipeline.addLast(sslContext.newHandler(channel.alloc(), target, port));
+                        }
+                        pipeline.addLast(new LoadGenerator.AckDecoder(), new AckCounter(expectedAcks));
+                    }
+                });
+        // the local server may still be binding its port
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final Channel channel = bootstrap.connect(target, port).sync().channel();
+                final SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+                if (sslHandler != null) {
+                    sslHandler.handshakeFuture().sync();
+                }
+                return channel;
+            } catch (Exception e) {
+                if (attempt == 20) {
+                    throw new IllegalStateException("Unable to connect to " + target + ":" + port, e);
+                }
+                TimeUnit.MILLISECONDS.sleep(250);
+            }
+        }
+    }
+
+    private class AckCounter extends SimpleChannelInboundHandler<Integer> {
+        private final Queue<Integer> expected;
+        private final AtomicLong lastAckMillis = new AtomicLong();
+
+        AckCounter(Queue<Integer> expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Integer sequence) {
+            // keep alive ACKs carry the sequence 0 and are not counted
+            if (sequence.equals(expected.peek())) {
+                expected.poll();
+                acks.increment();
+            }
+            lastAckMillis.set(System.currentTimeMillis());
+        }
+    }
+}
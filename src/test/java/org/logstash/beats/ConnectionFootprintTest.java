@@ -0,0 +1,235 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.EventExecutor;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Heap retained by the handlers and the state of a connection which acknowledged a window and went idle, the pipeline
+ * of the {@link Server} without its socket nor its executors.
+ * <p>
+ * The retained objects are walked from the handlers and sized with compressed references: 12 byte headers, 4 byte
+ * references and 8 byte alignment. The channel, its pipeline, event loop and allocator are not followed, nor are the
+ * objects shared by the connections: a second connection is walked after the first one and only counts the objects
+ * the first one did not reach. The fields of the JDK classes cannot be read, these objects only count their own
+ * fields.
+ * </p>
+ */
+public class ConnectionFootprintTest {
+
+    // budget per idle connection, the handlers and their state are below 1 KiB
+    private static final long BUDGET_BYTES = 1024;
+    private static final int MESSAGES = 10;
+
+    private final AckEncoder ackEncoder = new AckEncoder();
+    private final MessageListener listener = new MessageListener() {
+        @Override
+        public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+        }
+    };
+    private IdleTracker idleTracker;
+    private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    @Before
+    public void setUp() {
+        // long enough to never expire during the test, timeouts are not run on the embedded event loops
+        idleTracker = new IdleTracker("footprint", 3600, 3600);
+        visited.add(ackEncoder);
+        visited.add(listener);
+        visited.add(idleTracker);
+    }
+
+    @After
+    public void tearDown() {
+        idleTracker.stop();
+    }
+
+    @Test
+    public void testIdleConnectionFootprintIsWithinBudget() throws Exception {
+        final EmbeddedChannel first = idleConnection();
+        final EmbeddedChannel second = idleConnection();
+        try {
+            retainedBytes(first);
+            assertThat("bytes retained per idle connection", retainedBytes(second), lessThan(BUDGET_BYTES));
+        } finally {
+            first.finishAndReleaseAll();
+            second.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionDoesNotHoldItsReadBuffers() throws Exception {
+        final EmbeddedChannel first = idleConnection();
+        // the start of the next window, in a buffer sized like a socket read
+        final ByteBuf partial = Unpooled.buffer(65536).writeBytes(window(), 0, 10);
+        first.writeInbound(partial);
+        first.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+        try {
+            assertThat("bytes retained per idle connection", retainedBytes(first), lessThan(BUDGET_BYTES));
+        } finally {
+            first.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void testAckEncoderIsSharable() {
+        // a single encoder is added to the pipelines of all the connections
+        assertTrue(ackEncoder.isSharable());
+    }
+
+    /*
+     * A connection whose window was acknowledged, then told by the idle tracker that it is idle.
+     */
+    private EmbeddedChannel idleConnection() throws Exception {
+        final EmbeddedChannel channel = new EmbeddedChannel(ackEncoder, new ConnectionHandler(idleTracker),
+                new BeatsParser(), new BeatsHandler(listener));
+        channel.writeInbound(window());
+        final ByteBuf ack = channel.readOutbound();
+        assertEquals(MESSAGES, ack.getInt(2));
+        ack.release();
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+        channel.runPendingTasks();
+        return channel;
+    }
+
+    private static ByteBuf window() throws Exception {
+        final V2Batch batch = new V2Batch();
+        for (int i = 1; i <= MESSAGES; i++) {
+            final Map<String, String> data = new HashMap<>();
+            data.put("message", "Another world " + i);
+            final ByteBuf json = Unpooled.wrappedBuffer(Message.mapper().writeValueAsBytes(data));
+            batch.addMessage(i, json, json.readableBytes());
+        }
+        final EmbeddedChannel encoder = new EmbeddedChannel(new CompressedBatchEncoder());
+        encoder.writeOutbound(batch);
+        final ByteBuf encoded = encoder.readOutbound();
+        encoder.finishAndReleaseAll();
+        return encoded;
+    }
+
+    private long retainedBytes(EmbeddedChannel channel) throws IllegalAccessException {
+        final List<Object> roots = new ArrayList<>();
+        for (Map.Entry<String, ChannelHandler> handler : channel.pipeline()) {
+            roots.add(handler.getValue());
+        }
+        roots.add(ConnectionState.of(channel));
+
+        long bytes = 0;
+        final Deque<Object> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            final Object object = pending.pop();
+            if (isNotRetained(object) || !visited.add(object)) {
+                continue;
+            }
+            bytes += sizeOf(object, pending);
+        }
+        return bytes;
+    }
+
+    private static boolean isNotRetained(Object object) {
+        return object instanceof Class || object instanceof Enum || object instanceof Channel
+                || object instanceof ChannelHandlerContext || object instanceof ChannelPipeline
+                || object instanceof EventExecutor || object instanceof Timer || object instanceof ByteBufAllocator
+                || object instanceof Thread || object instanceof ClassLoader || object instanceof Logger;
+    }
+
+    /*
+     * Size of the object, the objects it references are added to the pending ones.
+     */
+    private static long sizeOf(Object object, Deque<Object> pending) throws IllegalAccessException {
+        final Class<?> type = object.getClass();
+        if (type.isArray()) {
+            final int length = Array.getLength(object);
+            final Class<?> component = type.getComponentType();
+            if (!component.isPrimitive()) {
+                for (int i = 0; i < length; i++) {
+                    follow(Array.get(object, i), pending);
+                }
+            }
+            return align(16 + (long) length * fieldSize(component));
+        }
+        if (object instanceof String) {
+            return align(12 + 4 + 4 + 1 + 1) + align(16 + ((String) object).length());
+        }
+        // the memory of a buffer is counted from its capacity, it is not reachable from its fields when it is direct
+        // or pooled
+        final boolean buffer = object instanceof ByteBuf;
+        long size = 12;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                size += fieldSize(field.getType());
+                if (!buffer && !field.getType().isPrimitive() && isReadable(field)) {
+                    follow(field.get(object), pending);
+                }
+            }
+        }
+        if (buffer) {
+            return align(size) + (((ByteBuf) object).refCnt() > 0 ? ((ByteBuf) object).capacity() : 0);
+        }
+        return align(size);
+    }
+
+    private static void follow(Object reference, Deque<Object> pending) {
+        if (reference != null) {
+            pending.push(reference);
+        }
+    }
+
+    private static boolean isReadable(Field field) {
+        try {
+            field.setAccessible(true);
+            return true;
+        } catch (RuntimeException e) {
+            // the fields of the JDK classes are not open to the tests
+            return false;
+        }
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class || !type.isPrimitive()) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
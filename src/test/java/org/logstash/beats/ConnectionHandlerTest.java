@@ -0,0 +1,120 @@
+package org.logstash.beats;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionHandlerTest {
+
+    private NioEventLoopGroup group;
+    private IdleTracker idleTracker;
+    private Channel server;
+    private final AtomicInteger readerIdleEvents = new AtomicInteger();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        group = new NioEventLoopGroup(2);
+        idleTracker = new IdleTracker("test", 1, 2);
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new AckEncoder(), new ConnectionHandler(idleTracker), new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                                if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+                                    readerIdleEvents.incrementAndGet();
+                                }
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.close().sync();
+        idleTracker.stop();
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws InterruptedException {
+        final Channel client = connect(new AtomicInteger());
+        final long start = System.nanoTime();
+
+        assertTrue(client.closeFuture().await(5, TimeUnit.SECONDS));
+        assertThat(System.nanoTime() - start, greaterThanOrEqualTo(TimeUnit.SECONDS.toNanos(2) - TimeUnit.MILLISECONDS.toNanos(IdleTracker.TICK_MILLIS)));
+        assertEquals("decoders are told once that the connection is idle", 1, readerIdleEvents.get());
+        assertIdleCheckCancelled();
+    }
+
+    @Test
+    public void testKeepAlivesAreSentWhileAWindowIsPending() throws InterruptedException {
+        final AtomicInteger keepAlives = new AtomicInteger();
+        final Channel client = connect(keepAlives);
+        // a read marks the connection as waiting for an ACK, which never comes
+        client.writeAndFlush(Unpooled.wrappedBuffer(new byte[] { Protocol.VERSION_2 })).sync();
+
+        TimeUnit.MILLISECONDS.sleep(3500);
+        assertTrue("keep alives count as writes, the connection is not idle", client.isActive());
+        assertThat(keepAlives.get(), greaterThanOrEqualTo(2));
+
+        client.close().sync();
+        assertIdleCheckCancelled();
+    }
+
+    private Channel connect(AtomicInteger keepAlives) throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new LoadGenerator.AckDecoder(), new SimpleChannelInboundHandler<Integer>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, Integer sequence) {
+                                if (sequence == 0) {
+                                    keepAlives.incrementAndGet();
+                                }
+                            }
+                        });
+                    }
+                })
+                .connect(server.localAddress()).sync().channel();
+    }
+
+    private void assertIdleCheckCancelled() throws InterruptedException {
+        // cancelled timeouts are removed from the wheel on its next tick
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (idleTracker.pendingTimeouts() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertEquals(0, idleTracker.pendingTimeouts());
+    }
+}
@@ -0,0 +1,175 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Test;
+import org.logstash.netty.SslContextBuilder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateTest {
+
+    @Test
+    public void testStateIsCreatedOncePerChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ConnectionState state = ConnectionState.of(channel);
+
+        assertSame(state, ConnectionState.of(channel));
+        assertNotSame(state, ConnectionState.of(new EmbeddedChannel()));
+        channel.close();
+    }
+
+    @Test
+    public void testUnknownAddressAndPlainConnection() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ConnectionState state = ConnectionState.of(channel);
+
+        assertNull(state.getIpAddress());
+        assertNull(state.getSslSession());
+        assertNull(state.getTlsPeer());
+        channel.close();
+    }
+
+    @Test
+    public void testIdentityStreamIsReusedWhileIdentityDoesNotChange() {
+        ConnectionState state = ConnectionState.of(new EmbeddedChannel());
+
+        String identity = state.identityStream("uuid1234", "rid1234");
+        assertEquals("uuid1234-rid1234", identity);
+        assertSame(identity, state.identityStream("uuid1234", "rid1234"));
+        assertEquals("uuid1234-rid5678", state.identityStream("uuid1234", "rid5678"));
+        assertEquals("null-null", state.identityStream(null, null));
+    }
+
+    @Test
+    public void testWindowsGetTheTimeOfTheReadHoldingTheirFirstByte() {
+        ConnectionState state = ConnectionState.of(new EmbeddedChannel());
+
+        state.markRead(100, 1000L);
+        state.markRead(100, 2000L);
+        assertEquals(1000L, state.readTimeOf(0));
+        assertEquals(2000L, state.readTimeOf(150));
+        state.markRead(100, 3000L);
+        assertEquals(2000L, state.readTimeOf(199));
+        assertEquals(3000L, state.readTimeOf(250));
+        assertEquals(300, state.getMetrics().getBytesRead());
+    }
+
+    @Test
+    public void testReadsBeyondTheMarksGetTheTimeOfThePreviousOne() {
+        ConnectionState state = ConnectionState.of(new EmbeddedChannel());
+
+        for (int i = 1; i <= 10; i++) {
+            state.markRead(100, i * 1000L);
+        }
+        // only the first 8 reads were marked while the parser was behind
+        assertEquals(8000L, state.readTimeOf(950));
+        state.markRead(100, 11_000L);
+        assertEquals(11_000L, state.readTimeOf(1000));
+    }
+
+    @Test
+    public void testAckLatencyOfTheConnection() {
+        ConnectionState state = ConnectionState.of(new EmbeddedChannel());
+        assertNull(state.getAckLatency());
+
+        state.recordAckLatency(5_000_000L);
+        state.recordAckLatency(1_000_000L);
+        state.recordAckLatency(3_000_000L);
+        assertEquals(3, state.getAckLatency().getCount());
+        assertEquals(5_000, state.getAckLatency().getMaxMicros());
+    }
+
+    @Test
+    public void testMessagesUseTheConnectionIdentityStream() {
+        ConnectionState state = ConnectionState.of(new EmbeddedChannel());
+        Map<String, String> beatsData = new HashMap<>();
+        beatsData.put("name", "filebeat");
+        beatsData.put("source", "/var/log/message.log");
+
+        Message first = message(beatsData);
+        first.setConnectionState(state);
+        Message second = message(beatsData);
+        second.setConnectionState(state);
+
+        assertEquals("filebeat-/var/log/message.log", first.getIdentityStream());
+        assertSame(first.getIdentityStream(), second.getIdentityStream());
+    }
+
+    @Test
+    public void testTlsPeerOfVerifiedClient() throws Exception {
+        final SslContext serverContext = new SslContextBuilder("src/test/resources/host.crt", "src/test/resources/host.key", null)
+                .setClientAuthentication(SslContextBuilder.SslClientVerifyMode.REQUIRED, new String[] { "src/test/resources/root-ca.crt" })
+                .buildContext();
+        final SslContext clientContext = io.netty.handler.ssl.SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .keyManager(new File("src/test/resources/host.crt"), new File("src/test/resources/host.key"))
+                .build();
+        final TlsPeer peer = handshake(serverContext, clientContext).getTlsPeer();
+
+        assertTrue(peer.isVerified());
+        assertEquals("TLSv1.3", peer.getProtocol());
+        assertTrue(peer.getCipherSuite().startsWith("TLS_"));
+        assertTrue(peer.getSubject(), peer.getSubject().startsWith("CN="));
+    }
+
+    @Test
+    public void testTlsPeerOfClientWithoutCertificate() throws Exception {
+        final SslContext serverContext = new SslContextBuilder("src/test/resources/host.crt", "src/test/resources/host.key", null)
+                .buildContext();
+        final SslContext clientContext = io.netty.handler.ssl.SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+        final ConnectionState state = handshake(serverContext, clientContext);
+        final TlsPeer peer = state.getTlsPeer();
+
+        assertFalse(peer.isVerified());
+        assertEquals("TLSv1.3", peer.getProtocol());
+        assertNull(peer.getSubject());
+        assertSame(peer, state.getTlsPeer());
+    }
+
+    // exchanges the handshake records between two embedded channels
+    private static ConnectionState handshake(SslContext serverContext, SslContext clientContext) {
+        final EmbeddedChannel server = new EmbeddedChannel();
+        server.pipeline().addLast(serverContext.newHandler(server.alloc()));
+        final EmbeddedChannel client = new EmbeddedChannel();
+        client.pipeline().addLast(clientContext.newHandler(client.alloc()));
+        final SslHandler serverHandler = server.pipeline().get(SslHandler.class);
+        for (int i = 0; i < 10 && !serverHandler.handshakeFuture().isDone(); i++) {
+            ByteBuf record;
+            while ((record = client.readOutbound()) != null) {
+                server.writeInbound(record);
+            }
+            while ((record = server.readOutbound()) != null) {
+                client.writeInbound(record);
+            }
+        }
+        assertTrue(serverHandler.handshakeFuture().isSuccess());
+        final ConnectionState state = ConnectionState.of(server);
+        // the peer is read while the SslHandler is in the pipeline, and kept once the channel is closed
+        assertNotNull(state.getTlsPeer());
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+        return state;
+    }
+
+    private static Message message(Map<String, String> beatsData) {
+        Map<Object, Object> map = new HashMap<>();
+        map.put("beat", beatsData);
+        return new Message(1, map);
+    }
+}
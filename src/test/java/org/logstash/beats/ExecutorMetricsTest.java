@@ -0,0 +1,86 @@
+package org.logstash.beats;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutorMetricsTest {
+    private DefaultEventExecutorGroup group;
+    private InputMetrics metrics;
+
+    @Before
+    public void setUp() {
+        group = new DefaultEventExecutorGroup(2);
+        metrics = new InputMetrics();
+        metrics.registerExecutors("beatsHandler", group);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testExecutorsAreNamedAfterTheirGroup() {
+        assertThat(metrics.getExecutors().stream().map(ExecutorMetrics::getName).collect(Collectors.toList()),
+                containsInAnyOrder("beatsHandler-1", "beatsHandler-2"));
+
+        metrics.unregisterExecutors(group);
+        assertTrue(metrics.getExecutors().isEmpty());
+        assertNull(metrics.getExecutorMetrics(group.next()));
+    }
+
+    @Test
+    public void testProbeMeasuresTheTimeTasksWait() throws InterruptedException {
+        EventExecutor executor = group.next();
+        ExecutorMetrics executorMetrics = metrics.getExecutorMetrics(executor);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        try {
+            // the blocking task must be running, not pending, when the probe is submitted
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executorMetrics.probe();
+            assertEquals(1, executorMetrics.getPendingTasks());
+            Thread.sleep(50);
+        } finally {
+            blocked.countDown();
+        }
+        executor.submit(() -> { }).sync();
+
+        assertEquals(1, executorMetrics.getTaskWait().getCount());
+        assertThat(executorMetrics.getTaskWait().getMaxMicros(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toMicros(50)));
+        assertEquals(0, executorMetrics.getPendingTasks());
+    }
+
+    @Test
+    public void testListenerTimeIsAccumulated() {
+        ExecutorMetrics executorMetrics = metrics.getExecutorMetrics(group.next());
+        executorMetrics.addListenerTime(100);
+        executorMetrics.addListenerTime(250);
+
+        assertEquals(350, executorMetrics.getListenerNanos());
+        assertEquals(2, executorMetrics.getListenerCalls());
+    }
+}
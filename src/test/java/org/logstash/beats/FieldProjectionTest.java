@@ -0,0 +1,81 @@
+package org.logstash.beats;
+
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FieldProjectionTest {
+    private static final String JSON = "{\"@metadata\":{\"beat\":\"filebeat\",\"type\":\"_doc\"}," +
+            "\"agent\":{\"name\":\"host-1\",\"ephemeral_id\":\"abc\"},\"message\":\"hello world\"," +
+            "\"host\":{\"name\":\"host-1\",\"ip\":[\"10.0.0.1\"],\"os\":{\"family\":\"debian\"}},\"ecs\":{\"version\":\"8.0.0\"}}";
+
+    private static Map project(FieldProjection projection) {
+        Message message = new Message(1, Unpooled.wrappedBuffer(JSON.getBytes(StandardCharsets.UTF_8)));
+        message.setFieldProjection(projection);
+        return message.getData();
+    }
+
+    @Test
+    public void testExcludesSubtrees() {
+        Map data = project(new FieldProjection(null, Arrays.asList("ecs", "[agent][ephemeral_id]", "[host][os]")));
+
+        assertFalse(data.containsKey("ecs"));
+        assertEquals(Collections.singletonMap("name", "host-1"), data.get("agent"));
+        Map host = (Map) data.get("host");
+        assertEquals("host-1", host.get("name"));
+        assertEquals(Collections.singletonList("10.0.0.1"), host.get("ip"));
+        assertFalse(host.containsKey("os"));
+        assertEquals("hello world", data.get("message"));
+        assertTrue(data.containsKey("@metadata"));
+    }
+
+    @Test
+    public void testIncludesOnlyRequestedFields() {
+        Map data = project(new FieldProjection(Arrays.asList("message", "@metadata", "[host][os][family]"), null));
+
+        assertEquals(3, data.size());
+        assertEquals("hello world", data.get("message"));
+        assertEquals("filebeat", ((Map) data.get("@metadata")).get("beat"));
+        Map host = (Map) data.get("host");
+        assertEquals(1, host.size());
+        assertEquals(Collections.singletonMap("family", "debian"), host.get("os"));
+    }
+
+    @Test
+    public void testExcludesAreAppliedWithinIncludes() {
+        Map data = project(new FieldProjection(Collections.singletonList("host"), Collections.singletonList("[host][ip]")));
+
+        assertEquals(1, data.size());
+        Map host = (Map) data.get("host");
+        assertEquals("host-1", host.get("name"));
+        assertFalse(host.containsKey("ip"));
+        assertTrue(host.containsKey("os"));
+    }
+
+    @Test
+    public void testIncludedPathThroughScalarIsSkipped() {
+        Map data = project(new FieldProjection(Collections.singletonList("[message][text]"), null));
+
+        assertTrue(data.isEmpty());
+    }
+
+    @Test
+    public void testProjectsMapMessages() {
+        Map<Object, Object> map = new HashMap();
+        map.put("line", "hello world");
+        map.put("file", "/var/log/syslog");
+        Message message = new Message(1, map);
+        message.setFieldProjection(new FieldProjection(null, Collections.singletonList("file")));
+
+        assertEquals(Collections.singletonMap("line", "hello world"), message.getData());
+    }
+}
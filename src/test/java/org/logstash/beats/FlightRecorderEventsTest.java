@@ -0,0 +1,99 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.logstash.beats.jfr.FlightRecorderEvents;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderEventsTest {
+
+    private static final int WINDOW_SIZE = 10;
+
+    @Test
+    public void testEventsAreDisabledOutsideOfARecording() {
+        assertTrue(FlightRecorderEvents.isAvailable());
+        assertFalse(FlightRecorderEvents.isFrameDecodedEnabled());
+        assertFalse(FlightRecorderEvents.isInflateEnabled());
+        assertFalse(FlightRecorderEvents.isBatchDispatchEnabled());
+        assertFalse(FlightRecorderEvents.isAckWrittenEnabled());
+    }
+
+    @Test
+    public void testDecodeInflateDispatchAndAckAreRecorded() throws Exception {
+        final List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("org.logstash.beats.FrameDecoded");
+            recording.enable("org.logstash.beats.Inflate");
+            recording.enable("org.logstash.beats.BatchDispatch");
+            recording.enable("org.logstash.beats.AckWritten");
+            recording.start();
+
+            final EmbeddedChannel channel = new EmbeddedChannel(new ConnectionHandler(), new BeatsParser(), new BeatsHandler(new MessageListener()));
+            channel.writeInbound(compressedWindow());
+            channel.finishAndReleaseAll();
+
+            recording.stop();
+            final Path dump = Files.createTempFile("beats", ".jfr");
+            try {
+                recording.dump(dump);
+                events = RecordingFile.readAllEvents(dump);
+            } finally {
+                Files.delete(dump);
+            }
+        }
+
+        final List<RecordedEvent> frames = named(events, "org.logstash.beats.FrameDecoded");
+        // the window size, the compressed frame and every Json frame
+        assertEquals(WINDOW_SIZE + 2, frames.size());
+        assertEquals(WINDOW_SIZE, frames.stream().filter(e -> e.getChar("frameType") == 'J').count());
+
+        final List<RecordedEvent> inflates = named(events, "org.logstash.beats.Inflate");
+        assertEquals(1, inflates.size());
+        assertThat(inflates.get(0).getDouble("ratio"), greaterThan(1.0));
+
+        final List<RecordedEvent> dispatches = named(events, "org.logstash.beats.BatchDispatch");
+        assertEquals(1, dispatches.size());
+        assertEquals(WINDOW_SIZE, dispatches.get(0).getInt("events"));
+
+        final List<RecordedEvent> acks = named(events, "org.logstash.beats.AckWritten");
+        assertEquals(1, acks.size());
+        assertEquals(WINDOW_SIZE, acks.get(0).getInt("sequence"));
+        assertThat(acks.get(0).getLong("windowLatency"), greaterThan(0L));
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).collect(Collectors.toList());
+    }
+
+    private static ByteBuf compressedWindow() throws Exception {
+        final V2Batch batch = new V2Batch();
+        batch.setBatchSize(WINDOW_SIZE);
+        for (int i = 1; i <= WINDOW_SIZE; i++) {
+            final ByteBuf json = Unpooled.wrappedBuffer(BeatsParserTest.MAPPER.writeValueAsBytes(
+                    Collections.singletonMap("message", "the quick brown fox jumps over the lazy dog")));
+            batch.addMessage(i, json, json.readableBytes());
+        }
+        final EmbeddedChannel encoder = new EmbeddedChannel(new CompressedBatchEncoder());
+        encoder.writeOutbound(batch);
+        final ByteBuf window = encoder.readOutbound();
+        encoder.finishAndReleaseAll();
+        batch.release();
+        return window;
+    }
+}
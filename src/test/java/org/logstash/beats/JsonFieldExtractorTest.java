@@ -0,0 +1,95 @@
+package org.logstash.beats;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonFieldExtractorTest {
+    private static final String JSON = "{\"@metadata\":{\"beat\":\"filebeat\",\"type\":\"_doc\",\"pipeline\":null}," +
+            "\"agent\":{\"name\":\"host-1\",\"version\":\"8.12.0\"},\"message\":\"hello world\"," +
+            "\"log\":{\"offset\":1234,\"flags\":[\"multiline\"]},\"fileset\":{\"name\":\"syslog\"},\"ok\":true}";
+
+    private static ByteBuf json() {
+        return Unpooled.wrappedBuffer(JSON.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testExtractsTopLevelAndNestedFields() {
+        JsonFieldExtractor extractor = new JsonFieldExtractor(Arrays.asList("[@metadata][beat]", "message", "[log][offset]", "ok"));
+        Map<String, Object> fields = extractor.extract(json());
+
+        assertEquals(4, fields.size());
+        assertEquals("filebeat", fields.get("[@metadata][beat]"));
+        assertEquals("hello world", fields.get("message"));
+        assertEquals(1234, fields.get("[log][offset]"));
+        assertEquals(Boolean.TRUE, fields.get("ok"));
+    }
+
+    @Test
+    public void testExtractsObjectsAndArrays() {
+        JsonFieldExtractor extractor = new JsonFieldExtractor(Arrays.asList("fileset", "[log][flags]"));
+        Map<String, Object> fields = extractor.extract(json());
+
+        assertEquals(Collections.singletonMap("name", "syslog"), fields.get("fileset"));
+        assertEquals(Collections.singletonList("multiline"), fields.get("[log][flags]"));
+    }
+
+    @Test
+    public void testMissingFieldsAreAbsentAndNullFieldsArePresent() {
+        JsonFieldExtractor extractor = new JsonFieldExtractor(Arrays.asList("[@metadata][pipeline]", "[agent][id]", "[message][nested]"));
+        Map<String, Object> fields = extractor.extract(json());
+
+        assertEquals(1, fields.size());
+        assertTrue(fields.containsKey("[@metadata][pipeline]"));
+        assertFalse(fields.containsKey("[agent][id]"));
+    }
+
+    @Test
+    public void testDoesNotModifyTheBuffer() {
+        ByteBuf buffer = json();
+        int readable = buffer.readableBytes();
+        new JsonFieldExtractor(Collections.singletonList("message")).extract(buffer);
+
+        assertEquals(0, buffer.readerIndex());
+        assertEquals(readable, buffer.readableBytes());
+    }
+
+    @Test
+    public void testExtractsFromMaterializedMap() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("beat", "filebeat");
+        Map<String, Object> data = new HashMap<>();
+        data.put("@metadata", metadata);
+        data.put("message", "hello world");
+
+        JsonFieldExtractor extractor = new JsonFieldExtractor(Arrays.asList("[@metadata][beat]", "message", "[agent][name]"));
+        Map<String, Object> fields = extractor.extract(data);
+
+        assertEquals(2, fields.size());
+        assertEquals("filebeat", fields.get("[@metadata][beat]"));
+        assertEquals("hello world", fields.get("message"));
+    }
+
+    @Test
+    public void testParseReference() {
+        assertEquals(Collections.singletonList("log.level"), JsonFieldExtractor.parseReference("log.level"));
+        List<String> segments = JsonFieldExtractor.parseReference("[@metadata][beat]");
+        assertEquals(Arrays.asList("@metadata", "beat"), segments);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidReference() {
+        JsonFieldExtractor.parseReference("[log][level");
+    }
+}
@@ -0,0 +1,106 @@
+package org.logstash.beats;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(99));
+    }
+
+    @Test
+    public void testPercentilesAreWithinThePrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMaxMicros());
+        assertWithinPrecision(500_000, histogram.getPercentileMicros(50));
+        assertWithinPrecision(990_000, histogram.getPercentileMicros(99));
+        assertWithinPrecision(999_000, histogram.getPercentileMicros(99.9));
+        assertEquals(1_000_000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram(4);
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(7));
+
+        assertEquals(3, histogram.getPercentileMicros(50));
+        assertEquals(7, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testValuesOutOfRangeAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(TimeUnit.DAYS.toNanos(1));
+
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(TimeUnit.HOURS.toMicros(1), histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testIntervalHistogramResetsTheRecorder() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(40));
+
+        LatencyHistogram interval = histogram.getIntervalHistogram();
+        assertEquals(2, interval.getCount());
+        assertWithinPrecision(40_000, interval.getMaxMicros());
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+        interval = histogram.getIntervalHistogram();
+        assertEquals(1, interval.getCount());
+        assertWithinPrecision(5_000, interval.getPercentileMicros(50));
+    }
+
+    @Test
+    public void testSnapshotsLeaveTheRecorderUntouched() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+        LatencyHistogram first = histogram.snapshot();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(8));
+        LatencyHistogram second = histogram.snapshot();
+
+        assertEquals(1, first.getCount());
+        assertEquals(3, second.getCount());
+        LatencyHistogram interval = second.since(first);
+        assertEquals(2, interval.getCount());
+        assertWithinPrecision(8_000, interval.getMaxMicros());
+        assertWithinPrecision(5_000, interval.getPercentileMicros(50));
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(3, histogram.getIntervalHistogram().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrecision() {
+        new LatencyHistogram(1);
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        long error = expected >> (LatencyHistogram.DEFAULT_PRECISION_BITS - 1);
+        assertThat(actual, allOf(greaterThanOrEqualTo(expected - error), lessThanOrEqualTo(expected + error)));
+    }
+}
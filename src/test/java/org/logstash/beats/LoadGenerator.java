@@ -0,0 +1,392 @@
+package org.logstash.beats;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.logstash.netty.SslContextBuilder;
+import org.logstash.netty.SslHandlerProvider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates concurrent beats clients sending windows of events and waiting for their ACKs, to measure the end to end
+ * throughput of a {@link Server} and the ACK latency seen by the clients.
+ * <p>
+ * Windows are built from a corpus of Json events, one per line, and encoded once with {@link BatchEncoder} or
+ * {@link CompressedBatchEncoder}. Like libbeat every client keeps up to {@code pipelining} windows in flight and
+ * only considers a window done once the ACK of its last sequence is received. With {@code rate} set, windows are
+ * sent on a fixed schedule and latencies are measured from the intended send time, so a stalled server is not
+ * hidden by clients that stopped sending.
+ * </p>
+ * <p>
+ * Without {@code host} a server is started in this JVM, with a listener deserializing every message, and the CPU
+ * time of its threads is reported. Options are given as {@code --name=value}:
+ * </p>
+ * <pre>
+ * gradle loadGenerator -PloadGeneratorArgs=--clients=8,--window=2048,--compressed=true,--ssl=true,--duration=60
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String SERVER_ID = "loadgen";
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int windowSize;
+    private final boolean compressed;
+    private final boolean ssl;
+    private final String corpus;
+    private final int pipelining;
+    private final double rate;
+    private final int durationSeconds;
+
+    private final LongAdder ackedEvents = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final List<Client> connected = new ArrayList<>();
+
+    LoadGenerator(CommandLineOptions options) {
+        this.host = options.get("host", null);
+        this.port = Integer.parseInt(options.get("port", "5044"));
+        this.clients = Integer.parseInt(options.get("clients", "4"));
+        this.windowSize = Integer.parseInt(options.get("window", "2048"));
+        this.compressed = Boolean.parseBoolean(options.get("compressed", "true"));
+        this.ssl = Boolean.parseBoolean(options.get("ssl", "false"));
+        this.corpus = options.get("corpus", "filebeat");
+        this.pipelining = Integer.parseInt(options.get("pipelining", "2"));
+        // events per second and per client, 0 sends as fast as ACKs come back
+        this.rate = Double.parseDouble(options.get("rate", "0"));
+        this.durationSeconds = Integer.parseInt(options.get("duration", "30"));
+        options.checkAllRead();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(CommandLineOptions.parse(args, 0)).run();
+    }
+
+    void run() throws Exception {
+        final List<ByteBuf> windows = encodeWindows(loadCorpus(corpus));
+        final Server server = host == null ? startServer() : null;
+        final NioEventLoopGroup group = new NioEventLoopGroup(Math.min(clients, Runtime.getRuntime().availableProcessors()));
+        try {
+            final SslContext clientContext = ssl ? io.netty.handler.ssl.SslContextBuilder.forClient()
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE).build() : null;
+            final String target = host == null ? "127.0.0.1" : host;
+            for (int i = 0; i < clients; i++) {
+                connected.add(connect(group, clientContext, target, windows.get(i % windows.size())));
+            }
+            System.out.printf(Locale.ROOT, "%d clients connected to %s:%d, window of %d events, compressed: %s, ssl: %s, pipelining: %d, rate: %s%n",
+                    clients, target, port, windowSize, compressed, ssl, pipelining, rate > 0 ? rate + " events/s per client" : "unbounded");
+
+            final long serverCpuStart = serverCpuTime();
+            final long start = System.nanoTime();
+            for (Client client : connected) {
+                client.start(start);
+            }
+            long lastEvents = 0;
+            for (int elapsed = REPORT_INTERVAL_SECONDS; elapsed <= durationSeconds; elapsed += REPORT_INTERVAL_SECONDS) {
+                TimeUnit.SECONDS.sleep(REPORT_INTERVAL_SECONDS);
+                final long events = ackedEvents.sum();
+                System.out.printf(Locale.ROOT, "%4ds %12.0f events/s%n", elapsed, (events - lastEvents) / (double) REPORT_INTERVAL_SECONDS);
+                lastEvents = events;
+            }
+            final double wallSeconds = (System.nanoTime() - start) / 1e9;
+            final long serverCpu = serverCpuStart < 0 ? -1 : serverCpuTime() - serverCpuStart;
+            for (Client client : connected) {
+                client.stop();
+            }
+            report(wallSeconds, serverCpu);
+        } finally {
+            group.shutdownGracefully().sync();
+            if (server != null) {
+                server.stop();
+            }
+            for (ByteBuf window : windows) {
+                window.release();
+            }
+        }
+    }
+
+    private void report(double wallSeconds, long serverCpuNanos) {
+        final long[] latencies = connected.stream().flatMapToLong(client -> Arrays.stream(client.latencies())).sorted().toArray();
+        final long events = ackedEvents.sum();
+        System.out.printf(Locale.ROOT, "events acked:    %d%n", events);
+        System.out.printf(Locale.ROOT, "throughput:      %.0f events/s, %.1f MB/s sent%n", events / wallSeconds, sentBytes.sum() / wallSeconds / (1024 * 1024));
+        if (latencies.length > 0) {
+            System.out.printf(Locale.ROOT, "ack latency ms:  p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f (%d windows)%n",
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 99.9),
+                    latencies[latencies.length - 1] / 1e6, latencies.length);
+        }
+        if (serverCpuNanos >= 0) {
+            System.out.printf(Locale.ROOT, "server cpu:      %.2f cores, %.2f us per event%n", serverCpuNanos / 1e9 / wallSeconds,
+                    events == 0 ? 0.0 : serverCpuNanos / 1e3 / events);
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private Server startServer() throws Exception {
+        final Server server = new Server(SERVER_ID, "127.0.0.1", port, 60, 0, Runtime.getRuntime().availableProcessors());
+        server.setMessageListener(new MessageListener() {
+            @Override
+            public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+                message.getData();
+            }
+        });
+        if (ssl) {
+            final SslContextBuilder sslBuilder = new SslContextBuilder(resourcePath("/host.crt"), resourcePath("/host.key"), null);
+            server.setSslHandlerProvider(new SslHandlerProvider(sslBuilder.buildContext(), 10000));
+        }
+        final Thread serverThread = new Thread(() -> {
+            try {
+                server.listen();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, SERVER_ID + "-listen");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    private static String resourcePath(String resource) {
+        return new File(LoadGenerator.class.getResource(resource).getFile()).getAbsolutePath();
+    }
+
+    /*
+     * CPU time of the threads of the local server, they are all named after the server id. Returns -1 when the server
+     * runs in another process or thread CPU time is not available.
+     */
+    private long serverCpuTime() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (host != null || !threads.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith(SERVER_ID + "-")) {
+                total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+            }
+        }
+        return total;
+    }
+
+    private Client connect(NioEventLoopGroup group, SslContext sslContext, String target, ByteBuf window) throws InterruptedException {
+        final Client client = new Client(window);
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        final ChannelPipeline pipeline = channel.pipeline();
+                        if (sslContext != null) {
+                            pipeline.addLast(sslContext.newHandler(channel.alloc(), target, port));
+                        }
+                        pipeline.addLast(new AckDecoder(), client);
+                    }
+                });
+        // the local server may still be binding its port
+        for (int attempt = 1; ; attempt++) {
+            try {
+                client.channel = bootstrap.connect(target, port).sync().channel();
+                final SslHandler sslHandler = client.channel.pipeline().get(SslHandler.class);
+                if (sslHandler != null) {
+                    sslHandler.handshakeFuture().sync();
+                }
+                return client;
+            } catch (Exception e) {
+                if (attempt == 20) {
+                    throw new IllegalStateException("Unable to connect to " + target + ":" + port, e);
+                }
+                TimeUnit.MILLISECONDS.sleep(250);
+            }
+        }
+    }
+
+    private List<ByteBuf> encodeWindows(List<ByteBuf> events) {
+        final List<ByteBuf> windows = new ArrayList<>();
+        // windows start at different offsets of the corpus so clients do not all send the same events
+        for (int offset = 0; offset < Math.min(events.size(), clients); offset++) {
+            final V2Batch batch = new V2Batch();
+            batch.setBatchSize(windowSize);
+            for (int i = 0; i < windowSize; i++) {
+                final ByteBuf event = events.get((offset + i) % events.size()).duplicate();
+                batch.addMessage(i + 1, event, event.readableBytes());
+            }
+            final EmbeddedChannel encoder = new EmbeddedChannel(compressed ? new CompressedBatchEncoder() : new BatchEncoder());
+            encoder.writeOutbound(batch);
+            final CompositeByteBuf encoded = Unpooled.compositeBuffer();
+            ByteBuf chunk;
+            while ((chunk = encoder.readOutbound()) != null) {
+                encoded.addComponent(true, chunk);
+            }
+            windows.add(Unpooled.copiedBuffer(encoded));
+            encoded.release();
+            batch.release();
+            encoder.finishAndReleaseAll();
+        }
+        for (ByteBuf event : events) {
+            event.release();
+        }
+        return windows;
+    }
+
+    private static List<ByteBuf> loadCorpus(String corpus) throws IOException {
+        final File file = new File(corpus);
+        final InputStream stream = file.isFile() ? new FileInputStream(file) : LoadGenerator.class.getResourceAsStream("/corpus/" + corpus + ".ndjson");
+        if (stream == null) {
+            throw new IllegalArgumentException("Corpus " + corpus + " is neither a file nor a bundled corpus");
+        }
+        final List<ByteBuf> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    events.add(Unpooled.copiedBuffer(line, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (events.isEmpty()) {
+            throw new IllegalArgumentException("Corpus " + corpus + " is empty");
+        }
+        return events;
+    }
+
+    // decodes the sequence of every ACK
+    static class AckDecoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            while (in.readableBytes() >= 6) {
+                in.skipBytes(2); // protocol version and 'A'
+                out.add(in.readInt());
+            }
+        }
+    }
+
+    /*
+     * One simulated beat, all its state is only accessed from the event loop of its channel.
+     */
+    private class Client extends SimpleChannelInboundHandler<Integer> {
+        private final ByteBuf window;
+        private final Queue<Long> inFlight = new ArrayDeque<>();
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+        private Channel channel;
+        private long firstWindowTime;
+        private long windowsScheduled;
+        private boolean fillScheduled;
+        private volatile boolean running;
+
+        Client(ByteBuf window) {
+            this.window = window;
+        }
+
+        void start(long startTime) {
+            channel.eventLoop().execute(() -> {
+                firstWindowTime = startTime;
+                running = true;
+                fill();
+            });
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            channel.close().sync();
+        }
+
+        long[] latencies() {
+            return Arrays.copyOf(latencies, latencyCount);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Integer sequence) {
+            // partial ACKs and keep alive only tell the window is still being processed
+            if (sequence != windowSize || inFlight.isEmpty()) {
+                return;
+            }
+            final long latency = System.nanoTime() - inFlight.poll();
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[latencyCount++] = latency;
+            ackedEvents.add(windowSize);
+            fill();
+        }
+
+        private void fill() {
+            while (running && inFlight.size() < pipelining) {
+                if (rate <= 0) {
+                    send(System.nanoTime());
+                    continue;
+                }
+                final long intended = firstWindowTime + (long) (windowsScheduled * windowSize / rate * 1e9);
+                final long delay = intended - System.nanoTime();
+                if (delay > 0) {
+                    if (!fillScheduled) {
+                        fillScheduled = true;
+                        channel.eventLoop().schedule(() -> {
+                            fillScheduled = false;
+                            fill();
+                        }, delay, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                send(intended);
+            }
+        }
+
+        private void send(long intendedTime) {
+            windowsScheduled++;
+            inFlight.add(intendedTime);
+            sentBytes.add(window.readableBytes());
+            channel.writeAndFlush(window.retainedDuplicate());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (running) {
+                System.err.println("Client " + ctx.channel().id().asShortText() + " failed: " + cause);
+            }
+            running = false;
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.logstash.beats;
+
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFilterTest {
+
+    private static Message message(String json) {
+        return new Message(1, Unpooled.wrappedBuffer(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageFilter filter() {
+        Map<String, List<String>> dropWhen = new HashMap<>();
+        dropWhen.put("[log][level]", Arrays.asList("debug", "trace"));
+        dropWhen.put("[http][status]", Collections.singletonList("404"));
+        return new MessageFilter(dropWhen);
+    }
+
+    @Test
+    public void testDropsOnExactMatch() {
+        MessageFilter filter = filter();
+
+        assertTrue(filter.shouldDrop(message("{\"log\":{\"level\":\"debug\"},\"message\":\"hello\"}")));
+        assertTrue(filter.shouldDrop(message("{\"http\":{\"status\":404}}")));
+        assertEquals(2, filter.getDroppedCount());
+    }
+
+    @Test
+    public void testKeepsMessagesThatDoNotMatch() {
+        MessageFilter filter = filter();
+
+        assertFalse(filter.shouldDrop(message("{\"log\":{\"level\":\"DEBUG\"}}")));
+        assertFalse(filter.shouldDrop(message("{\"log\":{\"level\":null}}")));
+        assertFalse(filter.shouldDrop(message("{\"message\":\"debug\"}")));
+        assertEquals(0, filter.getDroppedCount());
+    }
+
+    @Test
+    public void testEvaluatesMapMessages() {
+        Map<Object, Object> map = new HashMap<>();
+        map.put("log", Collections.singletonMap("level", "trace"));
+
+        assertTrue(filter().shouldDrop(new Message(1, map)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsFieldWithoutValues() {
+        new MessageFilter(Collections.singletonMap("[log][level]", Collections.emptyList()));
+    }
+}
@@ -1,13 +1,18 @@
 package org.logstash.beats;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
@@ -91,4 +96,45 @@ public class MessageTest {
 
         assertNull(message.getIdentityStream());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void TestGetRawDataReturnsTheJsonPayloadWithoutConsumingIt() {
+        byte[] json = "{\"message\":\"hello\"}".getBytes(StandardCharsets.UTF_8);
+        Message message = new Message(1, Unpooled.wrappedBuffer(json));
+
+        ByteBuf raw = message.getRawData();
+        assertEquals(json.length, raw.readableBytes());
+        assertEquals("hello", message.getData().get("message"));
+        assertArrayEquals(json, message.getRawBytes());
+    }
+
+    @Test
+    public void TestDeserializedMessageDoesNotUseTheBatchBuffer() {
+        ByteBuf buffer = Unpooled.copiedBuffer("{\"message\":\"hello\"}", StandardCharsets.UTF_8);
+        Message message = new Message(1, buffer);
+        message.getData();
+        buffer.release();
+
+        assertEquals("hello", message.getData().get("message"));
+        assertEquals("{\"message\":\"hello\"}", new String(message.getRawBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void TestGetRawDataSerializesMapMessages() {
+        Map<Object, Object> map = new HashMap();
+        map.put("message", "hello");
+        Message message = new Message(1, map);
+
+        assertEquals("{\"message\":\"hello\"}", new String(message.getRawBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void TestExtractFieldsDoesNotDeserializeTheMessage() {
+        byte[] json = "{\"@metadata\":{\"beat\":\"filebeat\"},\"message\":\"hello\"}".getBytes(StandardCharsets.UTF_8);
+        Message message = new Message(1, Unpooled.wrappedBuffer(json));
+
+        Map<String, Object> fields = message.extractFields(new JsonFieldExtractor(Collections.singletonList("[@metadata][beat]")));
+        assertEquals(Collections.singletonMap("[@metadata][beat]", "filebeat"), fields);
+        assertEquals("hello", message.getData().get("message"));
+    }
+}
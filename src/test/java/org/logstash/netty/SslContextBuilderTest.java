@@ -2,7 +2,11 @@ package org.logstash.netty;
 
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslContext;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslProvider;
 import org.hamcrest.core.Every;
 import org.junit.Rule;
 import org.junit.Test;
@@ -23,7 +27,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.logstash.netty.SslContextBuilder.SUPPORTED_CIPHERS;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+import static org.logstash.netty.SslContextBuilder.getSupportedJdkCiphers;
 import static org.logstash.netty.SslContextBuilder.SslClientVerifyMode;
 import static org.logstash.netty.SslContextBuilder.getDefaultCiphers;
 
@@ -58,14 +64,14 @@ public class SslContextBuilderTest {
     @Test
     public void testSetCipherSuitesShouldNotFailIfAllCiphersAreValid() {
         final SslContextBuilder sslContextBuilder = createSslContextBuilder();
-        sslContextBuilder.setCipherSuites(SUPPORTED_CIPHERS.toArray(new String[0]));
+        sslContextBuilder.setCipherSuites(getSupportedJdkCiphers().toArray(new String[0]));
     }
 
     @Test
     public void testSetCipherSuitesShouldThrowIfAnyCiphersIsInValid() {
         final SslContextBuilder sslContextBuilder = createSslContextBuilder();
-        final String[] ciphers = SUPPORTED_CIPHERS
-                .toArray(new String[SUPPORTED_CIPHERS.size() + 1]);
+        final String[] ciphers = getSupportedJdkCiphers()
+                .toArray(new String[getSupportedJdkCiphers().size() + 1]);
 
         ciphers[ciphers.length - 1] = "TLS_INVALID_CIPHER";
 
@@ -175,6 +181,58 @@ public class SslContextBuilderTest {
         sslContextBuilder.buildContext();
     }
 
+    @Test
+    public void testJdkIsTheDefaultSslProvider() throws Exception {
+        final SslContextBuilder sslContextBuilder = createSslContextBuilder();
+        assertThat(sslContextBuilder.getSslProvider(), is(SslProvider.JDK));
+        assertThat(sslContextBuilder.getSupportedCiphers(), is(getSupportedJdkCiphers()));
+        assertTrue(sslContextBuilder.buildContext() instanceof JdkSslContext);
+    }
+
+    @Test
+    public void testOpenSslProviderFallsBackToJdkWhenNotAvailable() throws Exception {
+        assumeFalse(OpenSsl.isAvailable());
+        final SslContextBuilder sslContextBuilder = createSslContextBuilder().setSslProvider(SslProvider.OPENSSL);
+        assertThat(sslContextBuilder.getSslProvider(), is(SslProvider.JDK));
+        assertArrayEquals(getDefaultCiphers(), sslContextBuilder.getCiphers());
+        assertTrue(sslContextBuilder.buildContext() instanceof JdkSslContext);
+    }
+
+    @Test
+    public void testOpenSslProviderValidatesCiphersOfTheNativeLibrary() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        final SslContextBuilder sslContextBuilder = createSslContextBuilder().setSslProvider(SslProvider.OPENSSL);
+        assertThat(sslContextBuilder.getSslProvider(), is(SslProvider.OPENSSL));
+        assertThat(Arrays.asList(sslContextBuilder.getCiphers()), Every.everyItem(isIn(OpenSsl.availableJavaCipherSuites())));
+        assertTrue(sslContextBuilder.buildContext() instanceof OpenSslContext);
+
+        thrown.expect(IllegalArgumentException.class);
+        sslContextBuilder.setCipherSuites(new String[] { "TLS_INVALID_CIPHER" });
+    }
+
+    @Test
+    public void testConfiguredCiphersAreKeptWithTheProvider() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        final String[] configured = new String[] { "TLS_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384" };
+        final SslContextBuilder sslContextBuilder = createSslContextBuilder()
+                .setCipherSuites(configured)
+                .setSslProvider(SslProvider.OPENSSL);
+
+        assertArrayEquals(configured, sslContextBuilder.getCiphers());
+        assertTrue(sslContextBuilder.buildContext() instanceof OpenSslContext);
+    }
+
+    @Test
+    public void testConfiguredCiphersAreCheckedAgainstTheSelectedProvider() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        final String[] configured = new String[] { "TLS_AES_128_GCM_SHA256", "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384" };
+        assumeFalse(OpenSsl.availableJavaCipherSuites().containsAll(Arrays.asList(configured)));
+        final SslContextBuilder sslContextBuilder = createSslContextBuilder().setCipherSuites(configured);
+
+        thrown.expect(IllegalArgumentException.class);
+        sslContextBuilder.setSslProvider(SslProvider.OPENSSL);
+    }
+
     @Test
     public void testBuildContextWithClientAuthentication() throws Exception {
         assertSslContextBuilderBuildContext(createSslContextBuilder()
@@ -0,0 +1,386 @@
+package org.logstash.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SslHandlerProviderTest {
+
+    private static final String CERTIFICATE = "src/test/resources/host.crt";
+    private static final String KEY = "src/test/resources/host.key";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NioEventLoopGroup group;
+
+    @Before
+    public void setUp() {
+        group = new NioEventLoopGroup(2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testSessionCacheSettingsAreApplied() throws Exception {
+        final SslContext context = new SslContextBuilder(CERTIFICATE, KEY, null)
+                .setSessionCacheSize(100)
+                .setSessionTimeout(300)
+                .buildContext();
+        assertEquals(100, context.sessionContext().getSessionCacheSize());
+        assertEquals(300, context.sessionContext().getSessionTimeout());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSessionCacheSizeIsRejected() {
+        new SslContextBuilder(CERTIFICATE, KEY, null).setSessionCacheSize(-1);
+    }
+
+    @Test
+    public void testResumedHandshakesAreCountedWithTls12() throws Exception {
+        assertReconnectionIsResumed("TLSv1.2", SslProvider.JDK);
+    }
+
+    @Test
+    public void testResumedHandshakesAreCountedWithTls13() throws Exception {
+        assertReconnectionIsResumed("TLSv1.3", SslProvider.JDK);
+    }
+
+    @Test
+    public void testResumedHandshakesAreCountedWithOpenSslAndTls12() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        assertReconnectionIsResumed("TLSv1.2", SslProvider.OPENSSL);
+    }
+
+    @Test
+    public void testResumedHandshakesAreCountedWithOpenSslAndTls13() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        assertReconnectionIsResumed("TLSv1.3", SslProvider.OPENSSL);
+    }
+
+    @Test
+    public void testFullHandshakesOfDistinctClientsAreNotResumed() throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(new SslContextBuilder(CERTIFICATE, KEY, null), 10000);
+        final Channel server = startServer(provider);
+        try {
+            final int port = ((InetSocketAddress) server.localAddress()).getPort();
+            connect(clientContext("TLSv1.3"), port);
+            connect(clientContext("TLSv1.3"), port);
+
+            awaitHandshakes(provider, 2);
+            assertEquals(0, provider.getMetrics().getResumedHandshakes());
+        } finally {
+            server.close().sync();
+        }
+    }
+
+    @Test
+    public void testReloadBuildsANewContext() throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(copiedContextBuilder(), 10000);
+        final SslContext previous = provider.getSslContext();
+
+        assertTrue(provider.reload());
+        assertNotSame(previous, provider.getSslContext());
+    }
+
+    @Test
+    public void testFailedReloadKeepsThePreviousContext() throws Exception {
+        final SslContextBuilder contextBuilder = copiedContextBuilder();
+        final SslHandlerProvider provider = new SslHandlerProvider(contextBuilder, 10000);
+        final SslContext previous = provider.getSslContext();
+
+        Files.write(contextBuilder.getFiles().get(1).toPath(), "not a key".getBytes(StandardCharsets.UTF_8));
+        assertFalse(provider.reload());
+        assertSame(previous, provider.getSslContext());
+    }
+
+    @Test
+    public void testChangedFilesAreReloadedOnceTheyStopChanging() throws Exception {
+        final SslContextBuilder contextBuilder = copiedContextBuilder();
+        final SslHandlerProvider provider = new SslHandlerProvider(contextBuilder, 10000);
+        final SslContext previous = provider.getSslContext();
+        provider.setReloadCheckInterval(1);
+
+        final File certificate = contextBuilder.getFiles().get(0);
+        assertTrue(certificate.setLastModified(certificate.lastModified() + 10_000));
+        provider.reloadIfChanged();
+        assertSame("files are only reloaded once unchanged for an interval", previous, provider.getSslContext());
+
+        provider.reloadIfChanged();
+        assertNotSame(previous, provider.getSslContext());
+
+        final SslContext reloaded = provider.getSslContext();
+        provider.reloadIfChanged();
+        assertSame(reloaded, provider.getSslContext());
+    }
+
+    @Test
+    public void testStartedProviderChecksTheFilesInTheBackground() throws Exception {
+        final SslContextBuilder contextBuilder = copiedContextBuilder();
+        final SslHandlerProvider provider = new SslHandlerProvider(contextBuilder, 10000);
+        final SslContext previous = provider.getSslContext();
+        provider.setReloadCheckInterval(10);
+        provider.start("test");
+        try {
+            final File certificate = contextBuilder.getFiles().get(0);
+            assertTrue(certificate.setLastModified(certificate.lastModified() + 10_000));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (provider.getSslContext() == previous && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertNotSame(previous, provider.getSslContext());
+        } finally {
+            provider.stop();
+        }
+    }
+
+    private SslContextBuilder copiedContextBuilder() throws Exception {
+        final File certificate = folder.newFile("host.crt");
+        final File key = folder.newFile("host.key");
+        Files.copy(Paths.get(CERTIFICATE), certificate.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(Paths.get(KEY), key.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new SslContextBuilder(certificate.getPath(), key.getPath(), null);
+    }
+
+    private void assertReconnectionIsResumed(String protocol, SslProvider sslProvider) throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(new SslContextBuilder(CERTIFICATE, KEY, null)
+                .setProtocols(new String[] { protocol })
+                .setSslProvider(sslProvider)
+                .buildContext(), 10000);
+        if (sslProvider == SslProvider.OPENSSL) {
+            // the tickets are encrypted with the keys of the provider instead of those of the native library
+            provider.setSessionTicketKeyRotation(3600);
+        }
+        final Channel server = startServer(provider);
+        try {
+            final SslContext clientContext = clientContext(protocol);
+            final int port = ((InetSocketAddress) server.localAddress()).getPort();
+            connect(clientContext, port);
+            connect(clientContext, port);
+
+            awaitHandshakes(provider, 2);
+            assertEquals(2, provider.getMetrics().getHandshakes());
+            assertEquals(1, provider.getMetrics().getResumedHandshakes());
+            assertEquals(Long.valueOf(2), provider.getMetrics().getProtocols().get(protocol));
+            assertEquals(2, provider.getMetrics().getHandshakeDuration().getCount());
+        } finally {
+            server.close().sync();
+        }
+    }
+
+    @Test
+    public void testHandshakesRunOnHandshakeThreads() throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(new SslContextBuilder(CERTIFICATE, KEY, null), 10000);
+        provider.setHandshakeThreads(2);
+        provider.start("test");
+        final Channel server = startServer(provider);
+        try {
+            final SslContext clientContext = clientContext("TLSv1.3");
+            final int port = ((InetSocketAddress) server.localAddress()).getPort();
+            connect(clientContext, port);
+            connect(clientContext, port);
+
+            awaitHandshakes(provider, 2);
+            assertEquals(2, provider.getMetrics().getHandshakes());
+            assertEquals(0, provider.getHandshakesInProgress());
+            assertTrue("handshake threads are named after the server", handshakeThreadsAlive());
+        } finally {
+            server.close().sync();
+            provider.stop();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (handshakeThreadsAlive() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertFalse("handshake threads stop with the provider", handshakeThreadsAlive());
+    }
+
+    private static boolean handshakeThreadsAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("test-ssl-handshake")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testConnectionsWaitToBeAcceptedWhenTooManyHandshakesAreInProgress() throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(new SslContextBuilder(CERTIFICATE, KEY, null), 10000);
+        provider.setMaxHandshakesInProgress(1);
+        final Channel server = startServer(provider);
+        try {
+            final int port = ((InetSocketAddress) server.localAddress()).getPort();
+            // a plain client never completes its handshake
+            final Channel stalled = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInboundHandlerAdapter())
+                    .connect("127.0.0.1", port).sync().channel();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (server.config().isAutoRead() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertFalse("accept is paused", server.config().isAutoRead());
+            assertEquals(1, provider.getHandshakesInProgress());
+
+            final Channel client = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(clientInitializer(clientContext("TLSv1.3"), port))
+                    .connect("127.0.0.1", port).sync().channel();
+            final SslHandler clientHandler = client.pipeline().get(SslHandler.class);
+            assertFalse("handshake waits in the accept backlog", clientHandler.handshakeFuture().await(300, TimeUnit.MILLISECONDS));
+
+            stalled.close().sync();
+            assertTrue(clientHandler.handshakeFuture().await(5, TimeUnit.SECONDS));
+            assertTrue(clientHandler.handshakeFuture().isSuccess());
+            client.close().sync();
+        } finally {
+            server.close().sync();
+        }
+    }
+
+    @Test
+    public void testHandshakeTimeoutsAreCounted() throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(new SslContextBuilder(CERTIFICATE, KEY, null), 100);
+        final Channel server = startServer(provider);
+        try {
+            final Channel silent = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInboundHandlerAdapter())
+                    .connect(server.localAddress()).sync().channel();
+            awaitFailures(provider, 1);
+            assertEquals(Collections.singletonMap(TlsMetrics.FAILURE_TIMEOUT, 1L), provider.getMetrics().getFailures());
+            silent.close().sync();
+        } finally {
+            server.close().sync();
+        }
+    }
+
+    @Test
+    public void testProtocolMismatchesAreCounted() throws Exception {
+        final SslHandlerProvider provider = new SslHandlerProvider(new SslContextBuilder(CERTIFICATE, KEY, null)
+                .setProtocols(new String[] { "TLSv1.3" }), 10000);
+        final Channel server = startServer(provider);
+        try {
+            final int port = ((InetSocketAddress) server.localAddress()).getPort();
+            final Channel client = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(clientInitializer(clientContext("TLSv1.2"), port))
+                    .connect("127.0.0.1", port).sync().channel();
+            assertFalse(client.pipeline().get(SslHandler.class).handshakeFuture().await().isSuccess());
+            awaitFailures(provider, 1);
+            assertEquals(Collections.singletonMap(TlsMetrics.FAILURE_PROTOCOL_MISMATCH, 1L), provider.getMetrics().getFailures());
+            assertEquals(0, provider.getMetrics().getHandshakes());
+            client.close().sync();
+        } finally {
+            server.close().sync();
+        }
+    }
+
+    private static void awaitFailures(SslHandlerProvider provider, long failures) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getMetrics().getFailedHandshakes() < failures && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private Channel startServer(SslHandlerProvider provider) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(provider.sslHandlerForChannel(channel), new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void userEventTriggered(ChannelHandlerContext ctx, Object event) {
+                                // BoringSSL sends the TLSv1.3 session tickets with the first write, as beats ACKs are
+                                if (event instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) event).isSuccess()) {
+                                    ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[] { 0 }));
+                                }
+                                ctx.fireUserEventTriggered(event);
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    private static SslContext clientContext(String protocol) throws Exception {
+        return io.netty.handler.ssl.SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .protocols(protocol)
+                .build();
+    }
+
+    // the server side of the handshake may complete after the client side
+    private static void awaitHandshakes(SslHandlerProvider provider, long handshakes) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getMetrics().getHandshakes() < handshakes && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static ChannelInitializer<SocketChannel> clientInitializer(SslContext clientContext, int port) {
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel channel) {
+                channel.pipeline().addLast(clientContext.newHandler(channel.alloc(), "127.0.0.1", port), new ChannelInboundHandlerAdapter());
+            }
+        };
+    }
+
+    private void connect(SslContext clientContext, int port) throws InterruptedException {
+        final Channel client = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(clientInitializer(clientContext, port))
+                .connect("127.0.0.1", port).sync().channel();
+        client.pipeline().get(SslHandler.class).handshakeFuture().sync();
+        // TLSv1.3 tickets are sent after the handshake
+        TimeUnit.MILLISECONDS.sleep(100);
+        client.close().sync();
+    }
+}
@@ -0,0 +1,44 @@
+package org.logstash.netty;
+
+import io.netty.handler.ssl.NotSslRecordException;
+import io.netty.handler.ssl.SslHandshakeTimeoutException;
+import org.junit.Test;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.nio.channels.ClosedChannelException;
+import java.security.cert.CertificateException;
+
+import static org.junit.Assert.assertEquals;
+
+public class TlsMetricsTest {
+
+    @Test
+    public void testFailuresAreClassifiedByCause() {
+        assertEquals(TlsMetrics.FAILURE_TIMEOUT, TlsMetrics.failureCause(new SslHandshakeTimeoutException("handshake timed out after 10000ms")));
+        assertEquals(TlsMetrics.FAILURE_NOT_TLS, TlsMetrics.failureCause(new NotSslRecordException("not an SSL/TLS record")));
+        assertEquals(TlsMetrics.FAILURE_CLOSED, TlsMetrics.failureCause(new ClosedChannelException()));
+        assertEquals(TlsMetrics.FAILURE_BAD_CERTIFICATE, TlsMetrics.failureCause(new SSLHandshakeException("Empty client certificate chain")));
+        assertEquals(TlsMetrics.FAILURE_BAD_CERTIFICATE, TlsMetrics.failureCause(wrap(new CertificateException("PKIX path validation failed"))));
+        assertEquals(TlsMetrics.FAILURE_PROTOCOL_MISMATCH, TlsMetrics.failureCause(new SSLHandshakeException("Client requested protocol TLSv1.1 is not enabled or supported in server context")));
+        assertEquals(TlsMetrics.FAILURE_PROTOCOL_MISMATCH, TlsMetrics.failureCause(new SSLHandshakeException("no cipher suites in common")));
+        assertEquals(TlsMetrics.FAILURE_OTHER, TlsMetrics.failureCause(new SSLHandshakeException("Received fatal alert: internal_error")));
+    }
+
+    @Test
+    public void testFailuresAreCountedByCause() {
+        final TlsMetrics metrics = new TlsMetrics();
+        metrics.addFailure(new SslHandshakeTimeoutException("handshake timed out after 10000ms"));
+        metrics.addFailure(new SslHandshakeTimeoutException("handshake timed out after 10000ms"));
+        metrics.addFailure(new SSLHandshakeException("no cipher suites in common"));
+
+        assertEquals(3, metrics.getFailedHandshakes());
+        assertEquals(Long.valueOf(2), metrics.getFailures().get(TlsMetrics.FAILURE_TIMEOUT));
+        assertEquals(Long.valueOf(1), metrics.getFailures().get(TlsMetrics.FAILURE_PROTOCOL_MISMATCH));
+    }
+
+    private static SSLHandshakeException wrap(Exception cause) {
+        final SSLHandshakeException exception = new SSLHandshakeException("General SSLEngine problem");
+        exception.initCause(cause);
+        return exception;
+    }
+}